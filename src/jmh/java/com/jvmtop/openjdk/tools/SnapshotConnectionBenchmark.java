@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2004, 2008, Oracle and/or its affiliates. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.  Oracle designates this
+ * particular file as subject to the "Classpath" exception as provided
+ * by Oracle in the LICENSE file that accompanied this code.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ *
+ * Please contact Oracle, 500 Oracle Parkway, Redwood Shores, CA 94065 USA
+ * or visit www.oracle.com if you need additional information or have any
+ * questions.
+ *
+ */
+
+/*
+ * This file has been modified by jvmtop project authors
+ */
+package com.jvmtop.openjdk.tools;
+
+import com.jvmtop.openjdk.tools.ProxyClient.AttributeHandle;
+import com.jvmtop.openjdk.tools.ProxyClient.SnapshotMBeanServerConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.RuntimeMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.management.ManagementFactory.*;
+
+/**
+ * Compares the per-refresh overhead of the attribute cache against the
+ * in-process platform MBeanServer:
+ * <ul>
+ * <li>the former SnapshotInvocationHandler behind a dynamic proxy, read
+ * through platform MXBean proxies</li>
+ * <li>the SnapshotConnection, read through the same MXBean proxies</li>
+ * <li>the SnapshotConnection, read by resolved AttributeHandles</li>
+ * </ul>
+ * A refresh flushes the cache and reads the uptime, thread counts, process
+ * cpu time and heap usage. The cached benchmarks read them without flushing,
+ * which leaves the overhead of the cache and the MXBean proxies alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotConnectionBenchmark {
+
+    private SnapshotMBeanServerConnection proxySnapshot;
+    private Beans proxyBeans;
+
+    private SnapshotMBeanServerConnection snapshot;
+    private Beans beans;
+
+    private AttributeHandle uptime;
+    private AttributeHandle threadCount;
+    private AttributeHandle peakThreadCount;
+    private AttributeHandle processCpuTime;
+    private AttributeHandle heapMemoryUsage;
+
+    @Setup
+    public void setUp() throws Exception {
+        MBeanServerConnection mbsc = ManagementFactory.getPlatformMBeanServer();
+        proxySnapshot = (SnapshotMBeanServerConnection) Proxy.newProxyInstance(
+                SnapshotConnectionBenchmark.class.getClassLoader(),
+                new Class[]{SnapshotMBeanServerConnection.class},
+                new SnapshotInvocationHandler(mbsc));
+        proxyBeans = new Beans(proxySnapshot);
+
+        snapshot = ProxyClient.Snapshot.newSnapshot(mbsc);
+        beans = new Beans(snapshot);
+
+        ObjectName runtime = new ObjectName(RUNTIME_MXBEAN_NAME);
+        ObjectName threading = new ObjectName(THREAD_MXBEAN_NAME);
+        uptime = snapshot.resolve(runtime, "Uptime");
+        threadCount = snapshot.resolve(threading, "ThreadCount");
+        peakThreadCount = snapshot.resolve(threading, "PeakThreadCount");
+        processCpuTime = snapshot.resolve(
+                new ObjectName(OPERATING_SYSTEM_MXBEAN_NAME), "ProcessCpuTime");
+        heapMemoryUsage = snapshot.resolve(
+                new ObjectName(MEMORY_MXBEAN_NAME), "HeapMemoryUsage");
+    }
+
+    @Benchmark
+    public long proxyHandlerRefresh() {
+        proxySnapshot.flush();
+        return proxyBeans.read();
+    }
+
+    @Benchmark
+    public long proxyHandlerCached() {
+        return proxyBeans.read();
+    }
+
+    @Benchmark
+    public long snapshotConnectionRefresh() {
+        snapshot.flush();
+        return beans.read();
+    }
+
+    @Benchmark
+    public long snapshotConnectionCached() {
+        return beans.read();
+    }
+
+    @Benchmark
+    public long attributeHandlesRefresh() throws JMException, IOException {
+        snapshot.flush();
+        return readHandles();
+    }
+
+    @Benchmark
+    public long attributeHandlesCached() throws JMException, IOException {
+        return readHandles();
+    }
+
+    private long readHandles() throws JMException, IOException {
+        MemoryUsage heap = MemoryUsage.from((CompositeData) snapshot.get(heapMemoryUsage));
+        return snapshot.getLong(uptime) + snapshot.getLong(threadCount)
+                + snapshot.getLong(peakThreadCount)
+                + snapshot.getLong(processCpuTime) + heap.getUsed();
+    }
+
+    /**
+     * The platform MXBean proxies on top of a snapshot connection
+     */
+    private static class Beans {
+        private final RuntimeMXBean runtime;
+        private final ThreadMXBean threading;
+        private final com.sun.management.OperatingSystemMXBean os;
+        private final MemoryMXBean memory;
+
+        Beans(MBeanServerConnection server) throws IOException {
+            runtime = newPlatformMXBeanProxy(server, RUNTIME_MXBEAN_NAME,
+                    RuntimeMXBean.class);
+            threading = newPlatformMXBeanProxy(server, THREAD_MXBEAN_NAME,
+                    ThreadMXBean.class);
+            os = newPlatformMXBeanProxy(server, OPERATING_SYSTEM_MXBEAN_NAME,
+                    com.sun.management.OperatingSystemMXBean.class);
+            memory = newPlatformMXBeanProxy(server, MEMORY_MXBEAN_NAME,
+                    MemoryMXBean.class);
+        }
+
+        long read() {
+            return runtime.getUptime() + threading.getThreadCount()
+                    + threading.getPeakThreadCount()
+                    + os.getProcessCpuTime()
+                    + memory.getHeapMemoryUsage().getUsed();
+        }
+    }
+
+    //
+    // The former attribute cache of ProxyClient, invoked through a dynamic
+    // proxy
+    //
+        static class SnapshotInvocationHandler implements InvocationHandler {
+
+            private final MBeanServerConnection conn;
+            private Map<ObjectName, NameValueMap> cachedValues = newMap();
+            private Map<ObjectName, Set<String>> cachedNames = newMap();
+
+            @SuppressWarnings("serial")
+            private static final class NameValueMap
+                    extends HashMap<String, Object> {}
+
+            SnapshotInvocationHandler(MBeanServerConnection conn) {
+                this.conn = conn;
+            }
+
+            synchronized void flush() {
+                cachedValues = newMap();
+            }
+
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                final String methodName = method.getName();
+                if (methodName.equals("getAttribute")) {
+                    return getAttribute((ObjectName) args[0], (String) args[1]);
+                } else if (methodName.equals("getAttributes")) {
+                    return getAttributes((ObjectName) args[0], (String[]) args[1]);
+                } else if (methodName.equals("flush")) {
+                    flush();
+                    return null;
+                } else {
+                    try {
+                        return method.invoke(conn, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            }
+
+            private Object getAttribute(ObjectName objName, String attrName)
+                    throws MBeanException, InstanceNotFoundException,
+                           AttributeNotFoundException, ReflectionException, IOException {
+                final NameValueMap values = getCachedAttributes(
+                        objName, Collections.singleton(attrName));
+                Object value = values.get(attrName);
+                if (value != null || values.containsKey(attrName)) {
+                    return value;
+                }
+                // Not in cache, presumably because it was omitted from the
+                // getAttributes result because of an exception.  Following
+                // call will probably provoke the same exception.
+                return conn.getAttribute(objName, attrName);
+            }
+
+            private AttributeList getAttributes(
+                    ObjectName objName, String[] attrNames) throws
+                                                            InstanceNotFoundException, ReflectionException, IOException {
+                final NameValueMap values = getCachedAttributes(
+                        objName,
+                        new TreeSet<String>(Arrays.asList(attrNames)));
+                final AttributeList list = new AttributeList();
+                for (String attrName : attrNames) {
+                    final Object value = values.get(attrName);
+                    if (value != null || values.containsKey(attrName)) {
+                        list.add(new Attribute(attrName, value));
+                    }
+                }
+                return list;
+            }
+
+            private synchronized NameValueMap getCachedAttributes(
+                    ObjectName objName, Set<String> attrNames) throws
+                                                               InstanceNotFoundException, ReflectionException, IOException {
+                NameValueMap values = cachedValues.get(objName);
+                if (values != null && values.keySet().containsAll(attrNames)) {
+                    return values;
+                }
+                attrNames = new TreeSet<String>(attrNames);
+                Set<String> oldNames = cachedNames.get(objName);
+                if (oldNames != null) {
+                    attrNames.addAll(oldNames);
+                }
+                values = new NameValueMap();
+                final AttributeList attrs = conn.getAttributes(
+                        objName,
+                        attrNames.toArray(new String[attrNames.size()]));
+                for (Attribute attr : attrs.asList()) {
+                    values.put(attr.getName(), attr.getValue());
+                }
+                cachedValues.put(objName, values);
+                cachedNames.put(objName, attrNames);
+                return values;
+            }
+
+            // See http://www.artima.com/weblogs/viewpost.jsp?thread=79394
+            private static <K, V> Map<K, V> newMap() {
+                return new HashMap<K, V>();
+            }
+        }
+}
@@ -0,0 +1,121 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares charging sampled frames to a {@link FrameInterner} and
+ * {@link FrameCounters} with the former
+ * {@code ConcurrentHashMap<String, MethodStats>} of the cpu sampler, which
+ * concatenated a key and allocated a {@link MethodStats} per sampled frame.
+ * <p>
+ * Every invocation charges {@link #SAMPLES} frames drawn from the given number
+ * of distinct frames. The sampled names are copies of the registered ones, as
+ * every thread dump deserializes new strings, so lookups have to compare their
+ * contents.
+ *
+ * @author paru
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCountingBenchmark {
+	private static final int SAMPLES = 4096;
+
+	@Param({ "1000", "10000", "100000" })
+	public int frames;
+
+	private String[] sampledClassNames_;
+	private String[] sampledMethodNames_;
+
+	private ConcurrentMap<String, MethodStats> data_;
+
+	private FrameInterner interner_;
+	private FrameCounters counters_;
+
+	@Setup
+	public void setUp() {
+		String[] classNames = new String[frames];
+		String[] methodNames = new String[frames];
+		data_ = new ConcurrentHashMap<String, MethodStats>();
+		interner_ = new FrameInterner();
+		counters_ = new FrameCounters(interner_);
+		for (int i = 0; i < frames; i++) {
+			classNames[i] = "com.example.module" + (i % 97) + ".Service" + (i / 13);
+			methodNames[i] = "handle" + (i % 13);
+			// register every frame, the hot path looks up known frames
+			chargeConcurrentHashMap(classNames[i], methodNames[i], 1);
+			counters_.add(interner_.intern(classNames[i], methodNames[i]), 1);
+		}
+		Random random = new Random(42);
+		sampledClassNames_ = new String[SAMPLES];
+		sampledMethodNames_ = new String[SAMPLES];
+		for (int i = 0; i < SAMPLES; i++) {
+			int frame = random.nextInt(frames);
+			sampledClassNames_[i] = new String(classNames[frame]);
+			sampledMethodNames_[i] = new String(methodNames[frame]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public ConcurrentMap<String, MethodStats> concurrentHashMap() {
+		for (int i = 0; i < SAMPLES; i++) {
+			chargeConcurrentHashMap(sampledClassNames_[i], sampledMethodNames_[i], i);
+		}
+		return data_;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public FrameCounters frameInterner() {
+		for (int i = 0; i < SAMPLES; i++) {
+			counters_.add(interner_.intern(sampledClassNames_[i], sampledMethodNames_[i]), i);
+		}
+		return counters_;
+	}
+
+	private void chargeConcurrentHashMap(String className, String methodName, long time) {
+		String key = className + "." + methodName;
+		data_.putIfAbsent(key, new MethodStats(className, methodName));
+		data_.get(key).getHits().addAndGet(time);
+	}
+}
@@ -0,0 +1,164 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.jvmtop.profiler.HeapSampler.HeapHistogram;
+
+import sun.tools.attach.HotSpotVirtualMachine;
+
+/**
+ * Compares the {@link HeapHistogramParser} with the former regular expression
+ * based parsing of the heap sampler, which matched every line, decoded all
+ * columns into objects and sorted them in a {@link TreeSet}.
+ * <p>
+ * The input is a recorded histogram of a jvm with about 50k classes
+ * ({@code histogram-50k.txt.gz}, 50249 rows), held in memory so only the
+ * parsing is measured.
+ *
+ * @author paru
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeapHistogramBenchmark {
+	private static final String HISTOGRAM = "histogram-50k.txt.gz";
+	private static final int TOP = 20;
+
+	// the former pattern required leading whitespace and so skipped the rows from
+	// 1000 on, this one accepts them to parse the same rows as the parser
+	private static final Pattern HIST_PATTERN = Pattern.compile("\\s*(\\d+):{1}\\s+(\\d+)\\s+(\\d+)\\s+(.+)");
+
+	private byte[] histogram_;
+
+	private HeapHistogramParser parser_;
+	private HeapSampler sampler_;
+
+	@Setup
+	public void setUp() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = new GZIPInputStream(HeapHistogramBenchmark.class.getResourceAsStream(HISTOGRAM))) {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+		histogram_ = out.toByteArray();
+		parser_ = new HeapHistogramParser();
+		sampler_ = new HeapSampler((HotSpotVirtualMachine) null);
+	}
+
+	/**
+	 * The former path: all rows in a sorted set, of which the top ones are taken
+	 */
+	@Benchmark
+	public List<RegexRow> regex() throws IOException {
+		SortedSet<RegexRow> rows = new TreeSet<RegexRow>();
+		Matcher matcher = HIST_PATTERN.matcher("");
+		BufferedReader data = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(histogram_)));
+		String line;
+		while ((line = data.readLine()) != null) {
+			matcher.reset(line);
+			if (matcher.matches()) {
+				rows.add(new RegexRow(matcher.group(4), matcher.group(2), matcher.group(3)));
+			}
+		}
+		List<RegexRow> top = new ArrayList<RegexRow>(TOP);
+		for (Iterator<RegexRow> iterator = rows.iterator(); iterator.hasNext() && top.size() < TOP;) {
+			top.add(iterator.next());
+		}
+		return top;
+	}
+
+	/**
+	 * Parsing into the primitive columns only
+	 */
+	@Benchmark
+	public int streamingParser() throws IOException {
+		return parser_.parse(new ByteArrayInputStream(histogram_));
+	}
+
+	/**
+	 * The current refresh of the heap sampler: parsing, recording the history
+	 * and materializing the top rows
+	 */
+	@Benchmark
+	public List<HeapHistogram> streamingSampler() throws IOException {
+		sampler_.update(new ByteArrayInputStream(histogram_), System.nanoTime());
+		return sampler_.selectTop(TOP, false);
+	}
+
+	/**
+	 * A row as built by the former parser
+	 */
+	public static class RegexRow implements Comparable<RegexRow> {
+		public final long count;
+		public final long bytes;
+		public final String className;
+		public final String memory;
+		public final String memorySuffix;
+
+		RegexRow(String className, String count, String bytes) {
+			this.className = HeapSampler.fromNativeType(className);
+			this.count = Long.valueOf(count);
+			this.bytes = Long.valueOf(bytes);
+			String[] strings = HeapSampler.toHumanForm(this.bytes);
+			this.memory = strings[0];
+			this.memorySuffix = strings[1];
+		}
+
+		@Override
+		public int compareTo(RegexRow o) {
+			// never 0, rows of the same size are all kept
+			return bytes > o.bytes ? -1 : 1;
+		}
+	}
+}
@@ -21,14 +21,17 @@
 package com.jvmtop;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Handler;
@@ -37,7 +40,12 @@ import java.util.logging.Logger;
 
 import org.jnativehook.GlobalScreen;
 
+import com.jvmtop.monitor.DeadlockProbe;
 import com.jvmtop.profiler.HeapSampler;
+import com.jvmtop.profiler.HeapSampler.HistogramMode;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.ThreadGrouper;
+import com.jvmtop.view.AbstractConsoleView;
 import com.jvmtop.view.ConsoleView;
 import com.jvmtop.view.VMDetailView;
 import com.jvmtop.view.VMMemProfileView;
@@ -89,11 +97,46 @@ public class JvmTop {
 				.withRequiredArg().ofType(Integer.class);
 		parser.acceptsAll(Arrays.asList("d", "delay"), "delay between each output iteration").withRequiredArg()
 				.ofType(Double.class);
+		parser.accepts("deadlock-interval", "minimum interval between two deadlock checks of a jvm, in seconds")
+				.withRequiredArg().ofType(Double.class);
+		parser.accepts("perfdata",
+				"overview reads the jvm metrics from their hsperfdata files instead of attaching (no cpu load, no deadlocks)");
 		parser.accepts("profile", "start CPU profiling at the specified jvm");
+		parser.accepts("profile-wall",
+				"start wall-clock profiling of blocked and waiting threads at the specified jvm");
+		parser.accepts("sample-interval",
+				"interval between two samples, e.g. 500us, 10ms or 1s, defaults to 100ms (only applicable with --profile)")
+				.withRequiredArg().ofType(String.class);
+		parser.accepts("profile-include",
+				"comma-separated package globs (e.g. com.mycorp.*) to be profiled, all other packages are filtered (only applicable with --profile)")
+				.withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+		parser.accepts("profile-exclude",
+				"comma-separated package globs (e.g. io.netty.*) to be filtered in addition to common 3rd-party packages (only applicable with --profile)")
+				.withRequiredArg().ofType(String.class).withValuesSeparatedBy(',');
+		parser.accepts("profile-group-pattern",
+				"regular expression, matching parts of thread names are replaced to group threads, defaults to digits (only applicable with --profile)")
+				.withRequiredArg().ofType(String.class);
+		parser.accepts("profile-window",
+				"length of the sliding window ranking in seconds, defaults to 30 (only applicable with --profile)")
+				.withRequiredArg().ofType(Integer.class);
+		parser.accepts("profile-half-life",
+				"half-life of the decayed ranking in seconds, defaults to 10 (only applicable with --profile)")
+				.withRequiredArg().ofType(Integer.class);
+		parser.accepts("profile-export",
+				"writes the sampled stacks in collapsed stack format (for flame graphs) to the specified file (only applicable with --profile)")
+				.withRequiredArg().ofType(String.class);
+		parser.accepts("profile-export-on-exit",
+				"writes the aggregated stacks when jvmtop exits instead of streaming every sample (only applicable with --profile-export)");
 		parser.accepts("enable-deltas",
 				"shows deltas between the updates (currently only applicable with --profile-mem)");
 
 		parser.accepts("profile-mem", "start memory profiling at the specified jvm").requiredIf("enable-deltas");
+		parser.accepts("histo-mode",
+				"objects covered by the heap histograms: 'live' (forces a full gc in the jvm on every update, default) or 'all' (only applicable with --profile-mem)")
+				.withRequiredArg().ofType(String.class);
+		parser.accepts("histo-max-cost",
+				"maximum percentage of wall time the jvm may spend on heap histograms, the update interval is extended accordingly, defaults to 10 (only applicable with --profile-mem)")
+				.withRequiredArg().ofType(Double.class);
 
 		parser.accepts("sysinfo", "outputs diagnostic information");
 		parser.accepts("verbose", "verbose mode");
@@ -133,7 +176,7 @@ public class JvmTop {
 		boolean sysInfoOption = a.has("sysinfo");
 		Integer pid = null;
 		Integer width = null;
-		boolean profileMode = a.has("profile");
+		boolean profileMode = a.has("profile") || a.has("profile-wall");
 		boolean profileMemMode = a.has("profile-mem");
 		boolean deltasEnabled = a.has("enable-deltas");
 		Integer iterations = a.has("once") ? 1 : -1;
@@ -193,6 +236,14 @@ public class JvmTop {
 			}
 		}
 
+		long deadlockInterval = DeadlockProbe.DEFAULT_INTERVAL;
+		if (a.hasArgument("deadlock-interval")) {
+			deadlockInterval = (long) ((Double) a.valueOf("deadlock-interval") * 1000);
+			if (deadlockInterval < 1000) {
+				throw new IllegalArgumentException("Deadlock interval cannot be set below 1");
+			}
+		}
+
 		if (a.hasArgument("threadnamewidth")) {
 			threadNameWidth = (Integer) a.valueOf("threadnamewidth");
 		}
@@ -211,16 +262,50 @@ public class JvmTop {
 			if (pid == null) {
 				jvmTop.setDelay(DELAY_OVERVIEW);
 				vmOverviewView = new VMOverviewView(width);
+				vmOverviewView.setDeadlockInterval(deadlockInterval);
+				vmOverviewView.setPerfDataMode(a.has("perfdata"));
 				jvmTop.run(vmOverviewView);
 			} else {
 				if (profileMode) {
-					jvmTop.run(new VMProfileView(pid, width));
+					long sampleInterval = VMProfileView.DEFAULT_SAMPLE_INTERVAL;
+					if (a.hasArgument("sample-interval")) {
+						sampleInterval = parseInterval((String) a.valueOf("sample-interval"));
+						if (sampleInterval < VMProfileView.MIN_SAMPLE_INTERVAL) {
+							throw new IllegalArgumentException("Sample interval cannot be set below 100us");
+						}
+					}
+					PackageFilter filter = new PackageFilter(toStringList(a.valuesOf("profile-include")),
+							toStringList(a.valuesOf("profile-exclude")));
+					ThreadGrouper grouper = new ThreadGrouper(a.hasArgument("profile-group-pattern")
+							? (String) a.valueOf("profile-group-pattern") : ThreadGrouper.DEFAULT_PATTERN);
+					final VMProfileView profileView = new VMProfileView(pid, width, sampleInterval, filter, grouper,
+							a.has("profile-wall"));
+					profileView.setRankingPeriods(
+							a.hasArgument("profile-window") ? (Integer) a.valueOf("profile-window")
+									: VMProfileView.DEFAULT_WINDOW,
+							a.hasArgument("profile-half-life") ? (Integer) a.valueOf("profile-half-life")
+									: VMProfileView.DEFAULT_HALF_LIFE);
+					if (a.hasArgument("profile-export")) {
+						profileView.exportCollapsedStacks(new File((String) a.valueOf("profile-export")),
+								!a.has("profile-export-on-exit"));
+						Runtime.getRuntime().addShutdownHook(new Thread(() -> closeQuietly(profileView)));
+					}
+					jvmTop.run(profileView);
 				}
 				if (profileMemMode) {
-					jvmTop.run(new VMMemProfileView(pid, width, deltasEnabled));
+					VMMemProfileView memProfileView = new VMMemProfileView(pid, width, deltasEnabled);
+					if (a.hasArgument("histo-mode")) {
+						memProfileView.setHistogramMode(parseHistogramMode((String) a.valueOf("histo-mode")));
+					}
+					if (a.hasArgument("histo-max-cost")) {
+						memProfileView.setMaxHistogramCostShare((Double) a.valueOf("histo-max-cost") / 100);
+					}
+					jvmTop.run(memProfileView);
+					closeQuietly(memProfileView);
 				} else {
 					vmDetailView = new VMDetailView(pid, width);
 					vmDetailView.setDisplayedThreadLimit(threadLimitEnabled);
+					vmDetailView.setDeadlockInterval(deadlockInterval);
 					if (threadlimit != null) {
 						vmDetailView.setNumberOfDisplayedThreads(threadlimit);
 					}
@@ -231,6 +316,7 @@ public class JvmTop {
 						vmDetailView.setThreadNameDisplayWidth(threadNameWidth);
 					}
 					jvmTop.run(vmDetailView);
+					vmDetailView.close();
 				}
 			}
 		}
@@ -278,6 +364,62 @@ public class JvmTop {
 		}
 	}
 
+	/**
+	 * Parses an interval like "10ms", "500us" or "2s", a value without unit is
+	 * interpreted as milliseconds.
+	 *
+	 * @param interval
+	 * @return the interval in microseconds
+	 */
+	static long parseInterval(String interval) {
+		String value = interval.trim().toLowerCase(Locale.US);
+		double factor = 1000;
+		if (value.endsWith("us")) {
+			factor = 1;
+			value = value.substring(0, value.length() - 2);
+		} else if (value.endsWith("ms")) {
+			value = value.substring(0, value.length() - 2);
+		} else if (value.endsWith("s")) {
+			factor = 1000 * 1000;
+			value = value.substring(0, value.length() - 1);
+		}
+		try {
+			return (long) (Double.parseDouble(value.trim()) * factor);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid interval: " + interval);
+		}
+	}
+
+	/**
+	 * Parses a histogram mode, "all" or "live"
+	 *
+	 * @param mode
+	 * @return
+	 */
+	static HistogramMode parseHistogramMode(String mode) {
+		try {
+			return HistogramMode.valueOf(mode.trim().toUpperCase(Locale.US));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid histogram mode: " + mode + ", expected 'all' or 'live'");
+		}
+	}
+
+	private static List<String> toStringList(List<?> values) {
+		List<String> list = new ArrayList<String>();
+		for (Object value : values) {
+			list.add(value.toString());
+		}
+		return list;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			System.err.println("ERROR: " + e.getMessage());
+		}
+	}
+
 	private static void fineLogging() {
 		// get the top Logger:
 		Logger topLogger = java.util.logging.Logger.getLogger("");
@@ -320,6 +462,16 @@ public class JvmTop {
 				keyListener.addOverviewView((VMOverviewView) view);
 				keyListener.addDetailedView(null);
 			}
+			if (view instanceof VMProfileView) {
+				keyListener.addProfileView((VMProfileView) view);
+			}
+			if (view instanceof VMMemProfileView) {
+				keyListener.addMemProfileView((VMMemProfileView) view);
+			}
+			if (view instanceof AbstractConsoleView) {
+				// a bounded number of iterations should not be spent on placeholders
+				((AbstractConsoleView) view).setAwaitInitialData(maxIterations_ > 0);
+			}
 			int iterations = 0;
 			while (!view.shouldExit()) {
 				if (maxIterations_ > 1 || maxIterations_ == -1) {
@@ -25,7 +25,9 @@ import org.jnativehook.keyboard.NativeKeyEvent;
 import org.jnativehook.keyboard.NativeKeyListener;
 
 import com.jvmtop.view.VMDetailView;
+import com.jvmtop.view.VMMemProfileView;
 import com.jvmtop.view.VMOverviewView;
+import com.jvmtop.view.VMProfileView;
 
 /**
  * 
@@ -47,6 +49,8 @@ class JvmTopKeyListener implements NativeKeyListener {
 	private JvmTop instance;
 	private VMDetailView detailView;
 	private VMOverviewView overviewView;
+	private VMProfileView profileView;
+	private VMMemProfileView memProfileView;
 	private StringBuilder sb = new StringBuilder();
 
 	public JvmTopKeyListener(JvmTop instance) {
@@ -58,6 +62,28 @@ class JvmTopKeyListener implements NativeKeyListener {
 		waitForExitButtonPressed(event);
 		triggerActionForDetailView(event);
 		triggerActionForOverviewView(event);
+		triggerActionForProfileView(event);
+		triggerActionForMemProfileView(event);
+	}
+
+	/**
+	 * Proceeds with actions if {@code VMMemProfileView} specified
+	 * */
+	private void triggerActionForMemProfileView(NativeKeyEvent event) {
+		if (memProfileView != null) {
+			fireOnKeyEquals(event, "S", () -> memProfileView.toggleSortByGrowth());
+		}
+	}
+
+	/**
+	 * Proceeds with actions if {@code VMProfileView} specified
+	 * */
+	private void triggerActionForProfileView(NativeKeyEvent event) {
+		if (profileView != null) {
+			fireOnKeyEquals(event, "I", () -> profileView.toggleInclusive());
+			fireOnKeyEquals(event, "G", () -> profileView.nextThreadGroup());
+			fireOnKeyEquals(event, "R", () -> profileView.nextRanking());
+		}
 	}
 
 	/**
@@ -109,6 +135,18 @@ class JvmTopKeyListener implements NativeKeyListener {
 		}
 	}
 
+	/**
+	 * Applies action if exactly the specified key triggered
+	 * 
+	 * @param key keyboard key text to fire action on
+	 * @param action action to apply if key pressed
+	 * */
+	private static void fireOnKeyEquals(NativeKeyEvent event, String key, Runnable action) {
+		if (NativeKeyEvent.getKeyText(event.getKeyCode()).equals(key)) {
+			action.run();
+		}
+	}
+
 	private void decreaseNumberOfStackAndThreadElementsShown() {
 		final int numberOfDisplayedThreads = detailView.getNumberOfDisplayedThreads();
 		final int stackTraceElementsShown = detailView.getStackTraceElementsShown();
@@ -170,6 +208,14 @@ class JvmTopKeyListener implements NativeKeyListener {
 		this.overviewView = view;
 	}
 
+	public void addProfileView(VMProfileView view) {
+		this.profileView = view;
+	}
+
+	public void addMemProfileView(VMMemProfileView view) {
+		this.memProfileView = view;
+	}
+
 	public void nativeKeyReleased(NativeKeyEvent e) {
 		// do nothing
 	}
@@ -0,0 +1,258 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the data collectors of a view (e.g. vm metrics, thread cpu times, heap
+ * histograms) in the background, each one with its own period.
+ * <p>
+ * The period of a collector adapts to its measured latency: it is chosen so
+ * that the collector takes at most its cost share of wall time, bounded by a
+ * minimum and a maximum period. A collector is never run concurrently with
+ * itself, but slow collectors do not delay other ones as long as there are
+ * enough threads. Views render the most recent results of the collectors and
+ * do not wait for them, except for the first results if only a bounded number
+ * of iterations is printed.
+ *
+ * @author paru
+ */
+public class CollectorScheduler implements Closeable {
+
+	/**
+	 * Collects data of a single source, storing the results where the view
+	 * picks them up
+	 */
+	public interface Collector {
+		void collect() throws Exception;
+	}
+
+	/**
+	 * A scheduled collector and its measured latency
+	 */
+	public static final class Source {
+		private static final double SMOOTHING = 0.3;
+
+		private final String name_;
+		private final Collector collector_;
+		private final long minPeriod_;
+		private final long maxPeriod_;
+		private volatile double costShare_;
+		private volatile long period_;
+		private volatile long lastLatency_ = -1;
+		private volatile double averageLatency_ = -1;
+		private volatile long lastCollected_ = -1;
+		private volatile Throwable lastError_ = null;
+		private final CountDownLatch firstCollection_ = new CountDownLatch(1);
+
+		private Source(String name, Collector collector, long minPeriod, long maxPeriod, double costShare) {
+			super();
+			name_ = name;
+			collector_ = collector;
+			minPeriod_ = minPeriod;
+			maxPeriod_ = maxPeriod;
+			costShare_ = costShare;
+			period_ = minPeriod;
+		}
+
+		private void collect() {
+			long start = System.nanoTime();
+			try {
+				collector_.collect();
+				lastError_ = null;
+			} catch (Throwable e) {
+				Logger.getLogger("jvmtop").log(Level.FINE, "error during collection of " + name_, e);
+				lastError_ = e;
+			}
+			long end = System.nanoTime();
+			lastLatency_ = end - start;
+			averageLatency_ = averageLatency_ < 0 ? lastLatency_
+					: SMOOTHING * lastLatency_ + (1 - SMOOTHING) * averageLatency_;
+			lastCollected_ = end;
+			long period = (long) (TimeUnit.NANOSECONDS.toMillis((long) averageLatency_) / costShare_);
+			period_ = Math.max(minPeriod_, Math.min(maxPeriod_, period));
+			firstCollection_.countDown();
+		}
+
+		public String getName() {
+			return name_;
+		}
+
+		/**
+		 * @return the current period between two collections in milliseconds
+		 */
+		public long getPeriod() {
+			return period_;
+		}
+
+		/**
+		 * @return the duration of the last collection in nanoseconds, -1 if
+		 *         nothing has been collected yet
+		 */
+		public long getLastLatency() {
+			return lastLatency_;
+		}
+
+		/**
+		 * @return the smoothed duration of the collections in nanoseconds, -1 if
+		 *         nothing has been collected yet
+		 */
+		public long getAverageLatency() {
+			return (long) averageLatency_;
+		}
+
+		/**
+		 * @return true if the collector has completed at least once
+		 */
+		public boolean hasCollected() {
+			return lastCollected_ >= 0;
+		}
+
+		/**
+		 * Waits until the collector has completed at least once
+		 *
+		 * @param timeout the maximum time to wait in milliseconds
+		 * @return true if the collector has completed, false if the timeout
+		 *         elapsed before
+		 * @throws InterruptedException
+		 */
+		public boolean awaitFirstCollection(long timeout) throws InterruptedException {
+			return firstCollection_.await(timeout, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @return the time since the last completed collection in milliseconds,
+		 *         -1 if nothing has been collected yet
+		 */
+		public long getAge() {
+			long lastCollected = lastCollected_;
+			return lastCollected < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastCollected);
+		}
+
+		/**
+		 * @return the error of the last collection, null if it succeeded
+		 */
+		public Throwable getLastError() {
+			return lastError_;
+		}
+
+		/**
+		 * @param costShare the maximum share of wall time (between 0 and 1,
+		 *                  exclusive) the collector may take
+		 */
+		public void setCostShare(double costShare) {
+			if (costShare <= 0 || costShare >= 1) {
+				throw new IllegalArgumentException("Cost share must be between 0 and 1");
+			}
+			costShare_ = costShare;
+		}
+	}
+
+	/**
+	 * The time in milliseconds a view waits for the first results of its
+	 * collectors if only a bounded number of iterations is printed
+	 */
+	public static final long FIRST_COLLECTION_TIMEOUT = 10000;
+
+	private final ScheduledExecutorService executor_;
+	private final List<Source> sources_ = new CopyOnWriteArrayList<Source>();
+
+	/**
+	 * @param name    the name of the collector threads
+	 * @param threads the number of collectors which may run concurrently
+	 */
+	public CollectorScheduler(final String name, int threads) {
+		super();
+		executor_ = Executors.newScheduledThreadPool(threads, r -> {
+			Thread thread = new Thread(r, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Schedules a collector, its first collection starts immediately.
+	 *
+	 * @param name      the name of the source
+	 * @param collector
+	 * @param minPeriod the minimum period between two collections in
+	 *                  milliseconds
+	 * @param maxPeriod the maximum period between two collections in
+	 *                  milliseconds
+	 * @param costShare the maximum share of wall time (between 0 and 1,
+	 *                  exclusive) the collector may take
+	 * @return the scheduled source
+	 */
+	public Source schedule(String name, Collector collector, long minPeriod, long maxPeriod, double costShare) {
+		Source source = new Source(name, collector, minPeriod, maxPeriod, costShare);
+		source.setCostShare(costShare);
+		sources_.add(source);
+		executor_.execute(() -> run(source));
+		return source;
+	}
+
+	public List<Source> getSources() {
+		return sources_;
+	}
+
+	/**
+	 * Waits until every collector has completed at least once
+	 *
+	 * @param timeout the maximum time to wait for all collectors in milliseconds
+	 * @return true if all collectors have completed, false if the timeout
+	 *         elapsed before
+	 * @throws InterruptedException
+	 */
+	public boolean awaitFirstCollections(long timeout) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		for (Source source : sources_) {
+			long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+			if (!source.awaitFirstCollection(Math.max(0, remaining))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void run(Source source) {
+		source.collect();
+		try {
+			executor_.schedule(() -> run(source), source.getPeriod(), TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// the scheduler has been closed
+		}
+	}
+
+	@Override
+	public void close() {
+		executor_.shutdownNow();
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.jvmtop.openjdk.tools.ProxyClient;
+
+/**
+ * Checks a jvm for deadlocked threads at a low frequency.
+ * <p>
+ * Finding deadlocks walks all threads of the jvm, so it is not done on every
+ * refresh but at most once per interval. The result, including the
+ * {@link ThreadInfo} of the deadlocked threads with their lock owners and
+ * stacks, is cached until the next probe.
+ *
+ * @author paru
+ */
+public class DeadlockProbe {
+
+	/**
+	 * The default minimum interval between two probes in milliseconds
+	 */
+	public static final long DEFAULT_INTERVAL = 30000;
+
+	private volatile long interval_ = DEFAULT_INTERVAL;
+	private long lastProbe_ = 0;
+	private boolean probed_ = false;
+	private volatile List<ThreadInfo> deadlockedThreads_ = Collections.emptyList();
+
+	/**
+	 * Probes the jvm if the interval has elapsed since the last probe
+	 *
+	 * @param proxyClient
+	 * @return true if the jvm has been probed
+	 * @throws IOException
+	 */
+	public synchronized boolean probeIfDue(ProxyClient proxyClient) throws IOException {
+		long now = System.nanoTime();
+		if (probed_ && (now - lastProbe_) / 1000000 < interval_) {
+			return false;
+		}
+		probe(proxyClient);
+		lastProbe_ = now;
+		probed_ = true;
+		return true;
+	}
+
+	/**
+	 * Probes the jvm, regardless of the interval
+	 *
+	 * @param proxyClient
+	 * @throws IOException
+	 */
+	public synchronized void probe(ProxyClient proxyClient) throws IOException {
+		// uses the synchronizer aware detection if the jvm supports it
+		long[] ids = proxyClient.findDeadlockedThreads();
+		if (ids == null || ids.length == 0) {
+			deadlockedThreads_ = Collections.emptyList();
+			return;
+		}
+		List<ThreadInfo> threads = new ArrayList<ThreadInfo>(ids.length);
+		for (ThreadInfo info : proxyClient.getThreadMXBean().getThreadInfo(ids, Integer.MAX_VALUE)) {
+			// a thread may have terminated meanwhile
+			if (info != null) {
+				threads.add(info);
+			}
+		}
+		deadlockedThreads_ = Collections.unmodifiableList(threads);
+	}
+
+	/**
+	 * @return true if the last probe found deadlocked threads
+	 */
+	public boolean hasDeadlockedThreads() {
+		return !deadlockedThreads_.isEmpty();
+	}
+
+	/**
+	 * @return the deadlocked threads found by the last probe, including their
+	 *         lock owners and stacks
+	 */
+	public List<ThreadInfo> getDeadlockedThreads() {
+		return deadlockedThreads_;
+	}
+
+	public long getInterval() {
+		return interval_;
+	}
+
+	/**
+	 * @param interval the minimum interval between two probes in milliseconds
+	 */
+	public void setInterval(long interval) {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("Deadlock interval must be positive");
+		}
+		interval_ = interval;
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A declarative set of MBean attributes which are fetched together.
+ * <p>
+ * Attributes are registered once with {@link #add(ObjectName, String)}, which
+ * returns the slot of the attribute. {@link #execute(MBeanServerConnection)}
+ * then fetches all attributes with a single getAttributes call per MBean, so
+ * the number of round trips per refresh is fixed to the number of MBeans in
+ * the plan.
+ *
+ * @author paru
+ */
+public class MetricPlan {
+
+	private static final class Request {
+		private final ObjectName name_;
+		private final List<String> attributes_ = new ArrayList<String>();
+		private final List<Integer> slots_ = new ArrayList<Integer>();
+
+		private Request(ObjectName name) {
+			super();
+			name_ = name;
+		}
+	}
+
+	private final Map<ObjectName, Request> requests_ = new LinkedHashMap<ObjectName, Request>();
+	private int size_ = 0;
+	private Object[] values_ = new Object[0];
+	private volatile long lastLatency_ = -1;
+
+	/**
+	 * Registers an attribute, registering an attribute twice returns the same
+	 * slot
+	 *
+	 * @param name      the name of the MBean
+	 * @param attribute the name of the attribute
+	 * @return the slot of the attribute
+	 */
+	public synchronized int add(ObjectName name, String attribute) {
+		Request request = requests_.get(name);
+		if (request == null) {
+			request = new Request(name);
+			requests_.put(name, request);
+		}
+		int index = request.attributes_.indexOf(attribute);
+		if (index >= 0) {
+			return request.slots_.get(index);
+		}
+		request.attributes_.add(attribute);
+		request.slots_.add(size_);
+		return size_++;
+	}
+
+	/**
+	 * Fetches all attributes of the plan, attributes which could not be fetched
+	 * have a null value until the next execution
+	 *
+	 * @param conn
+	 * @throws IOException
+	 */
+	public synchronized void execute(MBeanServerConnection conn) throws IOException {
+		long start = System.nanoTime();
+		Object[] values = new Object[size_];
+		for (Request request : requests_.values()) {
+			String[] attributes = request.attributes_.toArray(new String[request.attributes_.size()]);
+			AttributeList list;
+			try {
+				list = conn.getAttributes(request.name_, attributes);
+			} catch (InstanceNotFoundException e) {
+				continue;
+			} catch (ReflectionException e) {
+				continue;
+			}
+			// the list omits attributes which could not be read
+			for (Attribute attribute : list.asList()) {
+				int index = request.attributes_.indexOf(attribute.getName());
+				if (index >= 0) {
+					values[request.slots_.get(index)] = attribute.getValue();
+				}
+			}
+		}
+		values_ = values;
+		lastLatency_ = System.nanoTime() - start;
+	}
+
+	/**
+	 * @param slot
+	 * @return the value of the attribute as of the last execution, null if it
+	 *         could not be fetched
+	 */
+	public synchronized Object get(int slot) {
+		return slot < values_.length ? values_[slot] : null;
+	}
+
+	/**
+	 * @param slot
+	 * @param defaultValue
+	 * @return the numeric value of the attribute as of the last execution, the
+	 *         default value if it could not be fetched
+	 */
+	public synchronized long getLong(int slot, long defaultValue) {
+		Object value = get(slot);
+		return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+	}
+
+	/**
+	 * @return the number of getAttributes calls of an execution
+	 */
+	public synchronized int getRoundTrips() {
+		return requests_.size();
+	}
+
+	/**
+	 * @return the duration of the last execution in nanoseconds, -1 if the plan
+	 *         has not been executed yet
+	 */
+	public long getLastLatency() {
+		return lastLatency_;
+	}
+}
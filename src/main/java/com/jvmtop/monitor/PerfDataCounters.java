@@ -0,0 +1,186 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.util.Arrays;
+
+/**
+ * Resolves the offsets of the HotSpot perf data counters shown by jvmtop once,
+ * and reads them without allocating.
+ *
+ * @author paru
+ */
+final class PerfDataCounters {
+	// generation 0 and 1 are the young and old generation, 2 is the
+	// permanent generation of jvms before java 8
+	private static final int HEAP_GENERATIONS = 2;
+	private static final int PERM_GENERATION = 2;
+
+	private final PerfDataSource source_;
+	private final long frequency_;
+	private final int ticks_;
+	private final int[] heapSpaceUsed_;
+	private final int[] heapMaxCapacity_;
+	private final int[] nonHeapUsed_;
+	private final int[] nonHeapMaxCapacity_;
+	private final int[] gcTime_;
+	private final int[] gcCount_;
+	private final int threads_;
+	private final int peakThreads_;
+	private final int startedThreads_;
+	private final int loadedClasses_;
+	private final int sharedLoadedClasses_;
+
+	PerfDataCounters(PerfDataSource source) {
+		super();
+		source_ = source;
+		frequency_ = Math.max(1, source.getLong(source.findLong("sun.os.hrt.frequency")));
+		ticks_ = source.findLong("sun.os.hrt.ticks");
+
+		IntList heapSpaceUsed = new IntList();
+		IntList heapMaxCapacity = new IntList();
+		for (int gen = 0; gen < HEAP_GENERATIONS; gen++) {
+			String prefix = "sun.gc.generation." + gen + ".";
+			heapMaxCapacity.add(source.findLong(prefix + "maxCapacity"));
+			long spaces = source.getLong(source.findLong(prefix + "spaces"));
+			for (int space = 0; space < spaces; space++) {
+				heapSpaceUsed.add(source.findLong(prefix + "space." + space + ".used"));
+			}
+		}
+		heapSpaceUsed_ = heapSpaceUsed.toArray();
+		heapMaxCapacity_ = heapMaxCapacity.toArray();
+
+		IntList nonHeapUsed = new IntList();
+		IntList nonHeapMaxCapacity = new IntList();
+		nonHeapUsed.add(source.findLong("sun.gc.generation." + PERM_GENERATION + ".space.0.used"));
+		nonHeapMaxCapacity.add(source.findLong("sun.gc.generation." + PERM_GENERATION + ".maxCapacity"));
+		nonHeapUsed.add(source.findLong("sun.gc.metaspace.used"));
+		nonHeapMaxCapacity.add(source.findLong("sun.gc.metaspace.maxCapacity"));
+		nonHeapUsed.add(source.findLong("sun.gc.compressedclassspace.used"));
+		nonHeapUsed_ = nonHeapUsed.toArray();
+		nonHeapMaxCapacity_ = nonHeapMaxCapacity.toArray();
+
+		IntList gcTime = new IntList();
+		IntList gcCount = new IntList();
+		for (int collector = 0;; collector++) {
+			String prefix = "sun.gc.collector." + collector + ".";
+			int count = source.findLong(prefix + "invocations");
+			if (count == PerfDataSource.NO_COUNTER) {
+				break;
+			}
+			gcCount.add(count);
+			gcTime.add(source.findLong(prefix + "time"));
+		}
+		gcTime_ = gcTime.toArray();
+		gcCount_ = gcCount.toArray();
+
+		threads_ = source.findLong("java.threads.live");
+		peakThreads_ = source.findLong("java.threads.livePeak");
+		startedThreads_ = source.findLong("java.threads.started");
+		loadedClasses_ = source.findLong("java.cls.loadedClasses");
+		sharedLoadedClasses_ = source.findLong("java.cls.sharedLoadedClasses");
+	}
+
+	/**
+	 * @return the uptime in milliseconds
+	 */
+	long getUptime() {
+		return toMillis(source_.getLong(ticks_));
+	}
+
+	long getHeapUsed() {
+		return sum(heapSpaceUsed_);
+	}
+
+	long getHeapMax() {
+		return sum(heapMaxCapacity_);
+	}
+
+	long getNonHeapUsed() {
+		return sum(nonHeapUsed_);
+	}
+
+	long getNonHeapMax() {
+		return sum(nonHeapMaxCapacity_);
+	}
+
+	/**
+	 * @return the time spent in garbage collection in milliseconds
+	 */
+	long getGcTime() {
+		return toMillis(sum(gcTime_));
+	}
+
+	long getGcCount() {
+		return sum(gcCount_);
+	}
+
+	long getThreadCount() {
+		return source_.getLong(threads_);
+	}
+
+	long getPeakThreadCount() {
+		return source_.getLong(peakThreads_);
+	}
+
+	long getTotalStartedThreadCount() {
+		return source_.getLong(startedThreads_);
+	}
+
+	long getTotalLoadedClassCount() {
+		return source_.getLong(loadedClasses_) + source_.getLong(sharedLoadedClasses_);
+	}
+
+	private long sum(int[] offsets) {
+		long sum = 0;
+		for (int offset : offsets) {
+			sum += source_.getLong(offset);
+		}
+		return sum;
+	}
+
+	private long toMillis(long ticks) {
+		// avoids the overflow of ticks * 1000
+		return ticks / frequency_ * 1000 + ticks % frequency_ * 1000 / frequency_;
+	}
+
+	/**
+	 * Collects the offsets of the counters which exist in the jvm
+	 */
+	private static final class IntList {
+		private int[] values_ = new int[8];
+		private int size_ = 0;
+
+		private void add(int value) {
+			if (value == PerfDataSource.NO_COUNTER) {
+				return;
+			}
+			if (size_ == values_.length) {
+				values_ = Arrays.copyOf(values_, size_ * 2);
+			}
+			values_[size_++] = value;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(values_, size_);
+		}
+	}
+}
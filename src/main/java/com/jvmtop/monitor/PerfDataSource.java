@@ -0,0 +1,263 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the instrumentation counters HotSpot exports in its perf data file
+ * ({@code <tmpdir>/hsperfdata_<user>/<pid>}), without attaching to the jvm.
+ * <p>
+ * The file is memory-mapped and its entries are parsed once into a map from
+ * counter name to offset. Counters are then read by offset, which neither
+ * allocates nor affects the jvm. Entries the jvm adds later are parsed on
+ * lookup.
+ *
+ * @author paru
+ */
+public class PerfDataSource implements Closeable {
+	private static final String PERFDATA_PREFIX = "hsperfdata_";
+	private static final int MAGIC = 0xcafec0c0;
+	private static final int SUPPORTED_MAJOR_VERSION = 2;
+
+	// offsets of the prologue fields
+	private static final int BYTE_ORDER = 4;
+	private static final int MAJOR_VERSION = 5;
+	private static final int ACCESSIBLE = 7;
+	private static final int ENTRY_OFFSET = 24;
+	private static final int NUM_ENTRIES = 28;
+
+	// offsets of the entry header fields, relative to the entry
+	private static final int ENTRY_LENGTH = 0;
+	private static final int NAME_OFFSET = 4;
+	private static final int VECTOR_LENGTH = 8;
+	private static final int DATA_TYPE = 12;
+	private static final int DATA_OFFSET = 16;
+
+	private static final byte TYPE_LONG = 'J';
+	private static final byte TYPE_BYTE = 'B';
+
+	/**
+	 * The offset returned for unknown counters
+	 */
+	public static final int NO_COUNTER = -1;
+
+	private static final class Entry {
+		private final int offset_;
+		private final byte type_;
+		private final int vectorLength_;
+
+		private Entry(int offset, byte type, int vectorLength) {
+			super();
+			offset_ = offset;
+			type_ = type;
+			vectorLength_ = vectorLength;
+		}
+	}
+
+	private final Path file_;
+	private final String user_;
+	private final MappedByteBuffer buffer_;
+	private final Map<String, Entry> entries_ = new HashMap<String, Entry>();
+	private int parsedEntries_ = 0;
+	private int nextEntry_;
+
+	/**
+	 * Maps the perf data file of the jvm with the given pid
+	 *
+	 * @param vmid the pid of the jvm
+	 * @return
+	 * @throws IOException if there is no readable and initialized perf data
+	 *                     file
+	 */
+	public static PerfDataSource open(int vmid) throws IOException {
+		Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tmpDir, PERFDATA_PREFIX + "*")) {
+			for (Path dir : dirs) {
+				Path file = dir.resolve(String.valueOf(vmid));
+				if (Files.isReadable(file)) {
+					return new PerfDataSource(file, dir.getFileName().toString().substring(PERFDATA_PREFIX.length()));
+				}
+			}
+		}
+		throw new IOException("No perf data found for pid " + vmid);
+	}
+
+	/**
+	 * Maps the given perf data file
+	 *
+	 * @param file
+	 * @param user the owner of the jvm
+	 * @throws IOException if the file cannot be read or is not initialized
+	 */
+	public PerfDataSource(Path file, String user) throws IOException {
+		super();
+		file_ = file;
+		user_ = user;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping remains valid after closing the channel
+			buffer_ = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer_.capacity() < NUM_ENTRIES + 4) {
+			throw new IOException("Perf data of " + file + " is truncated");
+		}
+		buffer_.order(ByteOrder.BIG_ENDIAN);
+		if (buffer_.getInt(0) != MAGIC) {
+			throw new IOException(file + " is not a perf data file");
+		}
+		buffer_.order(buffer_.get(BYTE_ORDER) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+		if (buffer_.get(MAJOR_VERSION) != SUPPORTED_MAJOR_VERSION) {
+			throw new IOException("Unsupported perf data version " + buffer_.get(MAJOR_VERSION));
+		}
+		if (buffer_.get(ACCESSIBLE) == 0) {
+			throw new IOException("Perf data of " + file + " is not initialized yet");
+		}
+		nextEntry_ = buffer_.getInt(ENTRY_OFFSET);
+		parseNewEntries();
+	}
+
+	/**
+	 * Parses the entries which were added since the last parse
+	 */
+	private void parseNewEntries() {
+		int numEntries = buffer_.getInt(NUM_ENTRIES);
+		while (parsedEntries_ < numEntries) {
+			int entry = nextEntry_;
+			int length = buffer_.getInt(entry + ENTRY_LENGTH);
+			if (length <= 0 || entry + length > buffer_.capacity()) {
+				// not completely written yet
+				return;
+			}
+			String name = readString(entry + buffer_.getInt(entry + NAME_OFFSET), entry + length);
+			entries_.put(name, new Entry(entry + buffer_.getInt(entry + DATA_OFFSET), buffer_.get(entry + DATA_TYPE),
+					buffer_.getInt(entry + VECTOR_LENGTH)));
+			nextEntry_ = entry + length;
+			parsedEntries_++;
+		}
+	}
+
+	private Entry lookup(String name) {
+		Entry entry = entries_.get(name);
+		if (entry == null && parsedEntries_ < buffer_.getInt(NUM_ENTRIES)) {
+			parseNewEntries();
+			entry = entries_.get(name);
+		}
+		return entry;
+	}
+
+	/**
+	 * @param name the name of a counter, e.g. {@code java.threads.live}
+	 * @return the offset to be passed to {@link #getLong(int)},
+	 *         {@link #NO_COUNTER} if there is no such counter
+	 */
+	public synchronized int findLong(String name) {
+		Entry entry = lookup(name);
+		if (entry == null || entry.type_ != TYPE_LONG || entry.vectorLength_ != 0) {
+			return NO_COUNTER;
+		}
+		return entry.offset_;
+	}
+
+	/**
+	 * @param offset the offset of a counter, see {@link #findLong(String)}
+	 * @return the current value of the counter, 0 for {@link #NO_COUNTER}
+	 */
+	public long getLong(int offset) {
+		return offset == NO_COUNTER ? 0 : buffer_.getLong(offset);
+	}
+
+	/**
+	 * @param name the name of a string constant, e.g.
+	 *             {@code java.property.java.vm.name}
+	 * @return the value, null if there is no such string
+	 */
+	public synchronized String getString(String name) {
+		Entry entry = lookup(name);
+		if (entry == null || entry.type_ != TYPE_BYTE || entry.vectorLength_ == 0) {
+			return null;
+		}
+		return readString(entry.offset_, entry.offset_ + entry.vectorLength_);
+	}
+
+	/**
+	 * @return all string entries whose name starts with the given prefix, by
+	 *         their names without the prefix
+	 */
+	public synchronized Map<String, String> getStrings(String prefix) {
+		parseNewEntries();
+		Map<String, String> strings = new HashMap<String, String>();
+		for (Map.Entry<String, Entry> entry : entries_.entrySet()) {
+			if (entry.getKey().startsWith(prefix)) {
+				String value = getString(entry.getKey());
+				if (value != null) {
+					strings.put(entry.getKey().substring(prefix.length()), value);
+				}
+			}
+		}
+		return strings;
+	}
+
+	/**
+	 * @return the user owning the jvm, as given by the perf data directory
+	 */
+	public String getUser() {
+		return user_;
+	}
+
+	/**
+	 * @return false if the jvm has exited and removed its perf data file
+	 */
+	public boolean isAlive() {
+		return Files.exists(file_);
+	}
+
+	private String readString(int start, int end) {
+		int length = 0;
+		while (start + length < end && buffer_.get(start + length) != 0) {
+			length++;
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buffer_.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The mapping is released once this source is garbage collected
+	 */
+	@Override
+	public void close() {
+		entries_.clear();
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Discovers the local jvms by watching their instrumentation files
+ * ({@code <tmpdir>/hsperfdata_<user>/<pid>}), which HotSpot jvms create on
+ * startup and delete on exit.
+ * <p>
+ * The directories are scanned once, afterwards only the file system events are
+ * processed, so polling an unchanged host is almost free. The directories are
+ * only scanned again if events were lost.
+ *
+ * @author paru
+ */
+public class VMDiscovery implements Closeable {
+	private static final String PERFDATA_PREFIX = "hsperfdata_";
+
+	private final Path tmpDir_;
+	private final WatchService watchService_;
+	// the watched hsperfdata directories
+	private final Map<WatchKey, Path> perfDataDirs_ = new HashMap<WatchKey, Path>();
+	private final Set<Integer> vmids_ = new HashSet<Integer>();
+
+	/**
+	 * Watches the hsperfdata directories in the temporary directory
+	 *
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public VMDiscovery() throws IOException {
+		this(Paths.get(System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * Watches the hsperfdata directories in the given directory
+	 *
+	 * @param tmpDir
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public VMDiscovery(Path tmpDir) throws IOException {
+		super();
+		tmpDir_ = tmpDir;
+		watchService_ = FileSystems.getDefault().newWatchService();
+		tmpDir_.register(watchService_, StandardWatchEventKinds.ENTRY_CREATE);
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(tmpDir_, PERFDATA_PREFIX + "*")) {
+			for (Path dir : dirs) {
+				watch(dir);
+			}
+		}
+		rescan();
+	}
+
+	/**
+	 * Processes the pending file system events
+	 *
+	 * @return the pids of the running jvms
+	 */
+	public synchronized Set<Integer> poll() {
+		boolean rescan = false;
+		WatchKey key;
+		while ((key = watchService_.poll()) != null) {
+			Path perfDataDir = perfDataDirs_.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+					rescan = true;
+					continue;
+				}
+				Path name = (Path) event.context();
+				if (perfDataDir == null) {
+					// a new hsperfdata directory, e.g. of another user
+					if (name.toString().startsWith(PERFDATA_PREFIX)) {
+						watch(tmpDir_.resolve(name));
+						rescan = true;
+					}
+					continue;
+				}
+				Integer vmid = toVmid(name);
+				if (vmid == null) {
+					continue;
+				}
+				if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					vmids_.add(vmid);
+				} else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+					vmids_.remove(vmid);
+				}
+			}
+			if (!key.reset()) {
+				// the directory has been deleted
+				perfDataDirs_.remove(key);
+				rescan = true;
+			}
+		}
+		if (rescan) {
+			rescan();
+		}
+		return Collections.unmodifiableSet(new HashSet<Integer>(vmids_));
+	}
+
+	private void watch(Path dir) {
+		try {
+			WatchKey key = dir.register(watchService_, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			perfDataDirs_.put(key, dir);
+		} catch (IOException e) {
+			// e.g. the directory of another user
+			Logger.getLogger("jvmtop").log(Level.FINE, "cannot watch " + dir, e);
+		}
+	}
+
+	private void rescan() {
+		vmids_.clear();
+		for (Path dir : perfDataDirs_.values()) {
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					Integer vmid = toVmid(file.getFileName());
+					if (vmid != null) {
+						vmids_.add(vmid);
+					}
+				}
+			} catch (IOException e) {
+				Logger.getLogger("jvmtop").log(Level.FINE, "cannot scan " + dir, e);
+			}
+		}
+	}
+
+	private static Integer toVmid(Path name) {
+		try {
+			return Integer.valueOf(name.toString());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watchService_.close();
+	}
+}
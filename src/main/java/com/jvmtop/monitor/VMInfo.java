@@ -29,12 +29,17 @@ import java.io.IOException;
 import java.lang.management.*;
 import java.rmi.ConnectException;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 /**
  * VMInfo retrieves or updates the metrics for a specific remote jvm, using
@@ -75,35 +80,56 @@ public class VMInfo {
 
 	private ProxyClient proxyClient = null;
 
-	private OperatingSystemMXBean osBean;
-	private RuntimeMXBean runtimeMXBean;
-	private Collection<java.lang.management.GarbageCollectorMXBean> gcMXBeans;
-	private long lastGcTime;
+	// metrics are updated by collector threads and read by the views
+	private volatile OperatingSystemMXBean osBean;
+	private volatile RuntimeMXBean runtimeMXBean;
+	private volatile Collection<java.lang.management.GarbageCollectorMXBean> gcMXBeans;
+	private volatile long lastGcTime;
 	private long lastUpTime = -1;
 	private long lastCPUTime = -1;
-	private long gcCount = 0;
-	private double cpuLoad = 0.0;
-	private double gcLoad = 0.0;
-	private MemoryMXBean memoryMXBean;
-	private MemoryUsage heapMemoryUsage;
-	private MemoryUsage nonHeapMemoryUsage;
-	private ThreadMXBean threadMXBean;
-	private VMInfoState state_ = VMInfoState.INIT;
+	private volatile long gcCount = 0;
+	private volatile double cpuLoad = 0.0;
+	private volatile double gcLoad = 0.0;
+	private volatile MemoryMXBean memoryMXBean;
+	private volatile long heapUsed_;
+	private volatile long heapMax_;
+	private volatile long nonHeapUsed_;
+	private volatile long nonHeapMax_;
+	private volatile ThreadMXBean threadMXBean;
+	private volatile VMInfoState state_ = VMInfoState.INIT;
 	private String rawId_ = null;
 	private LocalVirtualMachine localVm_;
 	public static final Comparator<VMInfo> USED_HEAP_COMPARATOR = new UsedHeapComparator();
 	public static final Comparator<VMInfo> CPU_LOAD_COMPARATOR = new CPULoadComparator();
-	private long deltaUptime_;
-	private long deltaCpuTime_;
-	private long deltaGcTime_;
+	private volatile long deltaUptime_;
+	private volatile long deltaCpuTime_;
+	private volatile long deltaGcTime_;
 	private int updateErrorCount_ = 0;
-	private long totalLoadedClassCount_;
+	private volatile long totalLoadedClassCount_;
 	private ClassLoadingMXBean classLoadingMXBean_;
-	private boolean deadlocksDetected_ = false;
-	private String vmVersion_ = null;
-	private String osUser_;
-	private long threadCount_;
-	private Map<String, String> systemProperties_;
+	private final DeadlockProbe deadlockProbe_ = new DeadlockProbe();
+	private volatile VMMetadata metadata_ = null;
+
+	// the alternative to the proxyClient, null if attached
+	private PerfDataSource perfData_ = null;
+	private PerfDataCounters perfDataCounters_ = null;
+
+	// the attributes fetched on every metrics update and their slots
+	private volatile MetricPlan metricPlan_;
+	private int uptimeMetric_;
+	private int cpuTimeMetric_;
+	private int heapMetric_;
+	private int nonHeapMetric_;
+	private int loadedClassesMetric_;
+	private int threadCountMetric_;
+	private int peakThreadCountMetric_;
+	private int startedThreadsMetric_;
+	private int[] gcTimeMetrics_;
+	private int[] gcCountMetrics_;
+	private volatile long threadCount_;
+	private volatile long peakThreadCount_;
+	private volatile long totalStartedThreadCount_;
+	private volatile long uptime_;
 
 	/**
 	 * @param lastCPUProcessTime
@@ -121,6 +147,43 @@ public class VMInfo {
 		update();
 	}
 
+	private VMInfo(PerfDataSource perfData, LocalVirtualMachine localVm, String rawId) throws Exception {
+		super();
+		localVm_ = localVm;
+		rawId_ = rawId;
+		perfData_ = perfData;
+		perfDataCounters_ = new PerfDataCounters(perfData);
+		metadata_ = VMMetadata.load(perfData);
+		state_ = VMInfoState.ATTACHED;
+		update();
+	}
+
+	/**
+	 * Creates a VMInfo which reads the metrics from the perf data file of the jvm
+	 * instead of attaching to it. The perf data contains no cpu time, so the cpu
+	 * load is not available, and deadlocks cannot be detected. Attaches if the
+	 * perf data cannot be read.
+	 *
+	 * @param localvm
+	 * @param vmid
+	 * @return
+	 */
+	public static VMInfo processNewVMFromPerfData(LocalVirtualMachine localvm, int vmid) {
+		PerfDataSource perfData;
+		try {
+			perfData = PerfDataSource.open(vmid);
+		} catch (IOException e) {
+			Logger.getLogger("jvmtop").log(Level.FINE, "no perf data, attaching (PID=" + vmid + ")", e);
+			return processNewVM(localvm, vmid);
+		}
+		try {
+			return new VMInfo(perfData, localvm, vmid + "");
+		} catch (Exception e) {
+			Logger.getLogger("jvmtop").log(Level.FINE, "error reading perf data (PID=" + vmid + ")", e);
+			return VMInfo.createDeadVM(vmid, localvm);
+		}
+	}
+
 	/**
 	 * TODO: refactor to constructor?
 	 *
@@ -211,6 +274,16 @@ public class VMInfo {
 		return vmInfo;
 	}
 
+	/**
+	 * Reports an error of a collector which fetches data from the vm outside of
+	 * {@link #update()}, the state changes as if the update had failed
+	 *
+	 * @param e
+	 */
+	public void reportUpdateError(Throwable e) {
+		handleUpdateError(e);
+	}
+
 	/**
 	 * @return the state
 	 */
@@ -224,38 +297,132 @@ public class VMInfo {
 	 * @throws Exception
 	 */
 	public void update() throws Exception {
-		if (state_ == VMInfoState.ERROR_DURING_ATTACH || state_ == VMInfoState.DETACHED
-				|| state_ == VMInfoState.CONNECTION_REFUSED) {
+		updateMetrics();
+		updateDeadlocks();
+	}
+
+	/**
+	 * Updates the frequently changing metrics (memory, cpu, gc, threads, classes)
+	 * to the most recent remote values
+	 *
+	 * @throws Exception
+	 */
+	public void updateMetrics() throws Exception {
+		if (!isUpdatable()) {
 			return;
 		}
-
-		if (proxyClient.isDead()) {
-			state_ = VMInfoState.DETACHED;
+		if (perfData_ != null) {
+			updatePerfData();
 			return;
 		}
-
 		try {
 			proxyClient.flush();
 
-			osBean = proxyClient.getSunOperatingSystemMXBean();
-			runtimeMXBean = proxyClient.getRuntimeMXBean();
-			gcMXBeans = proxyClient.getGarbageCollectorMXBeans();
-			classLoadingMXBean_ = proxyClient.getClassLoadingMXBean();
-			memoryMXBean = proxyClient.getMemoryMXBean();
-			heapMemoryUsage = memoryMXBean.getHeapMemoryUsage();
-			nonHeapMemoryUsage = memoryMXBean.getNonHeapMemoryUsage();
-			threadMXBean = proxyClient.getThreadMXBean();
-			// TODO: fetch jvm-constant data only once
-			systemProperties_ = runtimeMXBean.getSystemProperties();
-			vmVersion_ = extractShortVer();
-			osUser_ = systemProperties_.get("user.name");
+			VMMetadata metadata = metadata_;
+			if (metadata == null || metadata.isStale(proxyClient)) {
+				reload();
+			}
 			updateInternal();
+		} catch (Throwable e) {
+			handleUpdateError(e);
+		}
+	}
 
-			deadlocksDetected_ = threadMXBean.findDeadlockedThreads() != null
-					|| threadMXBean.findMonitorDeadlockedThreads() != null;
+	/**
+	 * Fetches the jvm-constant data and the MXBean proxies, this is done once per
+	 * connection only
+	 *
+	 * @throws IOException
+	 */
+	private void reload() throws IOException {
+		osBean = proxyClient.getSunOperatingSystemMXBean();
+		runtimeMXBean = proxyClient.getRuntimeMXBean();
+		gcMXBeans = proxyClient.getGarbageCollectorMXBeans();
+		classLoadingMXBean_ = proxyClient.getClassLoadingMXBean();
+		memoryMXBean = proxyClient.getMemoryMXBean();
+		threadMXBean = proxyClient.getThreadMXBean();
+		metadata_ = VMMetadata.load(proxyClient);
+		metricPlan_ = createMetricPlan();
+	}
 
+	/**
+	 * Creates the plan of the attributes fetched on every metrics update, the
+	 * garbage collectors are resolved once
+	 *
+	 * @throws IOException
+	 */
+	private MetricPlan createMetricPlan() throws IOException {
+		try {
+			MetricPlan plan = new MetricPlan();
+			ObjectName runtime = new ObjectName(ManagementFactory.RUNTIME_MXBEAN_NAME);
+			ObjectName os = new ObjectName(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+			ObjectName memory = new ObjectName(ManagementFactory.MEMORY_MXBEAN_NAME);
+			ObjectName classLoading = new ObjectName(ManagementFactory.CLASS_LOADING_MXBEAN_NAME);
+			ObjectName threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+			uptimeMetric_ = plan.add(runtime, "Uptime");
+			cpuTimeMetric_ = plan.add(os, "ProcessCpuTime");
+			heapMetric_ = plan.add(memory, "HeapMemoryUsage");
+			nonHeapMetric_ = plan.add(memory, "NonHeapMemoryUsage");
+			loadedClassesMetric_ = plan.add(classLoading, "TotalLoadedClassCount");
+			threadCountMetric_ = plan.add(threading, "ThreadCount");
+			peakThreadCountMetric_ = plan.add(threading, "PeakThreadCount");
+			startedThreadsMetric_ = plan.add(threading, "TotalStartedThreadCount");
+
+			Set<ObjectName> gcNames = proxyClient.getMBeanServerConnection()
+					.queryNames(new ObjectName(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*"), null);
+			gcTimeMetrics_ = new int[gcNames.size()];
+			gcCountMetrics_ = new int[gcNames.size()];
+			int i = 0;
+			for (ObjectName gcName : gcNames) {
+				gcTimeMetrics_[i] = plan.add(gcName, "CollectionTime");
+				gcCountMetrics_[i] = plan.add(gcName, "CollectionCount");
+				i++;
+			}
+			return plan;
+		} catch (MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Checks the jvm for deadlocked threads, if the interval of the
+	 * {@link DeadlockProbe} has elapsed since the last check
+	 *
+	 * @throws Exception
+	 */
+	public void updateDeadlocks() throws Exception {
+		if (!isUpdatable() || perfData_ != null) {
+			return;
+		}
+		try {
+			deadlockProbe_.probeIfDue(proxyClient);
 		} catch (Throwable e) {
-			Logger.getLogger("jvmtop").log(Level.FINE, "error during update", e);
+			handleUpdateError(e);
+		}
+	}
+
+	private boolean isUpdatable() {
+		if (state_ == VMInfoState.ATTACHING || state_ == VMInfoState.ERROR_DURING_ATTACH
+				|| state_ == VMInfoState.DETACHED || state_ == VMInfoState.CONNECTION_REFUSED) {
+			return false;
+		}
+		if (perfData_ != null) {
+			if (!perfData_.isAlive()) {
+				state_ = VMInfoState.DETACHED;
+				return false;
+			}
+			return true;
+		}
+		if (proxyClient.isDead()) {
+			state_ = VMInfoState.DETACHED;
+			return false;
+		}
+		return true;
+	}
+
+	private void handleUpdateError(Throwable e) {
+		Logger.getLogger("jvmtop").log(Level.FINE, "error during update", e);
+		synchronized (this) {
 			updateErrorCount_++;
 			if (updateErrorCount_ > 10) {
 				state_ = VMInfoState.DETACHED;
@@ -271,12 +438,24 @@ public class VMInfo {
 	 * @throws Exception
 	 */
 	private void updateInternal() throws Exception {
-		long uptime = runtimeMXBean.getUptime();
+		MetricPlan plan = metricPlan_;
+		plan.execute(proxyClient.getMBeanServerConnection());
 
-		long cpuTime = proxyClient.getProcessCpuTime();
-		// long cpuTime = osBean.getProcessCpuTime();
-		long gcTime = sumGCTimes();
-		gcCount = sumGCCount();
+		long uptime = plan.getLong(uptimeMetric_, 0);
+
+		long cpuTime = plan.getLong(cpuTimeMetric_, 0);
+		if (LocalVirtualMachine.isJ9Mode()) {
+			// J9 returns the value in 100ns units
+			cpuTime *= 100;
+		}
+		long gcTime = sumGCTimes(plan);
+		gcCount = sumGCCount(plan);
+		MemoryUsage heapMemoryUsage = MemoryUsage.from((CompositeData) plan.get(heapMetric_));
+		MemoryUsage nonHeapMemoryUsage = MemoryUsage.from((CompositeData) plan.get(nonHeapMetric_));
+		heapUsed_ = heapMemoryUsage.getUsed();
+		heapMax_ = heapMemoryUsage.getMax();
+		nonHeapUsed_ = nonHeapMemoryUsage.getUsed();
+		nonHeapMax_ = nonHeapMemoryUsage.getMax();
 		if (lastUpTime > 0 && lastCPUTime > 0 && gcTime >= 0) {
 			deltaUptime_ = uptime - lastUpTime;
 			deltaCpuTime_ = (cpuTime - lastCPUTime) / 1000000;
@@ -290,9 +469,48 @@ public class VMInfo {
 		lastCPUTime = cpuTime;
 		lastGcTime = gcTime;
 
-		totalLoadedClassCount_ = classLoadingMXBean_.getTotalLoadedClassCount();
+		totalLoadedClassCount_ = plan.getLong(loadedClassesMetric_, 0);
 
-		threadCount_ = threadMXBean.getThreadCount();
+		threadCount_ = plan.getLong(threadCountMetric_, 0);
+		peakThreadCount_ = plan.getLong(peakThreadCountMetric_, 0);
+		totalStartedThreadCount_ = plan.getLong(startedThreadsMetric_, 0);
+		uptime_ = uptime;
+	}
+
+	/**
+	 * calculates the metrics from the perf data, which does not allocate
+	 */
+	private void updatePerfData() {
+		PerfDataCounters counters = perfDataCounters_;
+		long uptime = counters.getUptime();
+		long gcTime = counters.getGcTime();
+		gcCount = counters.getGcCount();
+		heapUsed_ = counters.getHeapUsed();
+		heapMax_ = counters.getHeapMax();
+		nonHeapUsed_ = counters.getNonHeapUsed();
+		nonHeapMax_ = counters.getNonHeapMax();
+		if (lastUpTime > 0) {
+			deltaUptime_ = uptime - lastUpTime;
+			deltaGcTime_ = gcTime - lastGcTime;
+			// without cpu time, the gc load is the share of wall time spent in gc
+			gcLoad = deltaUptime_ <= 0 ? 0.0 : Math.min(1.0, (double) deltaGcTime_ / deltaUptime_);
+		}
+		lastUpTime = uptime;
+		lastGcTime = gcTime;
+
+		totalLoadedClassCount_ = counters.getTotalLoadedClassCount();
+		threadCount_ = counters.getThreadCount();
+		peakThreadCount_ = counters.getPeakThreadCount();
+		totalStartedThreadCount_ = counters.getTotalStartedThreadCount();
+		uptime_ = uptime;
+	}
+
+	/**
+	 * @return true if the metrics are read from the perf data file instead of
+	 *         an attached jvm
+	 */
+	public boolean isPerfDataBased() {
+		return perfData_ != null;
 	}
 
 	/**
@@ -306,7 +524,7 @@ public class VMInfo {
 		if (deltaTime <= 0 || deltaUptime == 0) {
 			return 0.0;
 		}
-		return Math.min(99.0, deltaTime / (deltaUptime * osBean.getAvailableProcessors()));
+		return Math.min(99.0, deltaTime / (deltaUptime * metadata_.getAvailableProcessors()));
 	}
 
 	/**
@@ -314,10 +532,10 @@ public class VMInfo {
 	 *
 	 * @return
 	 */
-	private long sumGCTimes() {
+	private long sumGCTimes(MetricPlan plan) {
 		long sum = 0;
-		for (java.lang.management.GarbageCollectorMXBean mxBean : gcMXBeans) {
-			sum += mxBean.getCollectionTime();
+		for (int metric : gcTimeMetrics_) {
+			sum += plan.getLong(metric, 0);
 		}
 		return sum;
 	}
@@ -327,42 +545,107 @@ public class VMInfo {
 	 *
 	 * @return
 	 */
-	private long sumGCCount() {
+	private long sumGCCount(MetricPlan plan) {
 		long sum = 0;
-		for (java.lang.management.GarbageCollectorMXBean mxBean : gcMXBeans) {
-			sum += mxBean.getCollectionCount();
+		for (int metric : gcCountMetrics_) {
+			sum += plan.getLong(metric, 0);
 		}
 		return sum;
 	}
 
 	public long getHeapUsed() {
-		return heapMemoryUsage.getUsed();
+		return heapUsed_;
 	}
 
 	public long getHeapMax() {
-		return heapMemoryUsage.getMax();
+		return heapMax_;
 	}
 
 	public long getNonHeapUsed() {
-		return nonHeapMemoryUsage.getUsed();
+		return nonHeapUsed_;
 	}
 
 	public long getNonHeapMax() {
-		return nonHeapMemoryUsage.getMax();
+		return nonHeapMax_;
 	}
 
 	public long getTotalLoadedClassCount() {
 		return totalLoadedClassCount_;
 	}
 
+	/**
+	 * @return true if deadlocked threads were found by the last check, see
+	 *         {@link #updateDeadlocks()}
+	 */
 	public boolean hasDeadlockThreads() {
-		return deadlocksDetected_;
+		return deadlockProbe_.hasDeadlockedThreads();
+	}
+
+	/**
+	 * @return the deadlocked threads found by the last check, including their
+	 *         lock owners and stacks
+	 */
+	public List<ThreadInfo> getDeadlockedThreads() {
+		return deadlockProbe_.getDeadlockedThreads();
+	}
+
+	/**
+	 * @param interval the minimum interval between two deadlock checks in
+	 *                 milliseconds
+	 */
+	public void setDeadlockInterval(long interval) {
+		deadlockProbe_.setInterval(interval);
 	}
 
 	public long getThreadCount() {
 		return threadCount_;
 	}
 
+	public long getPeakThreadCount() {
+		return peakThreadCount_;
+	}
+
+	public long getTotalStartedThreadCount() {
+		return totalStartedThreadCount_;
+	}
+
+	/**
+	 * @return the uptime of the jvm in milliseconds, as of the last update
+	 */
+	public long getUptime() {
+		return uptime_;
+	}
+
+	public List<String> getInputArguments() {
+		VMMetadata metadata = metadata_;
+		return metadata == null ? Collections.<String> emptyList() : metadata.getInputArguments();
+	}
+
+	/**
+	 * @return the number of processors available to the jvm, 0 if not attached
+	 */
+	public int getAvailableProcessors() {
+		VMMetadata metadata = metadata_;
+		return metadata == null ? 0 : metadata.getAvailableProcessors();
+	}
+
+	/**
+	 * @return the duration of the last metrics update in nanoseconds, -1 if
+	 *         not updated yet
+	 */
+	public long getLastUpdateLatency() {
+		MetricPlan plan = metricPlan_;
+		return plan == null ? -1 : plan.getLastLatency();
+	}
+
+	/**
+	 * @return the number of remote calls of a metrics update
+	 */
+	public int getUpdateRoundTrips() {
+		MetricPlan plan = metricPlan_;
+		return plan == null ? 0 : plan.getRoundTrips();
+	}
+
 	/**
 	 * @return the cpuLoad
 	 */
@@ -407,11 +690,13 @@ public class VMInfo {
 	 * public VirtualMachine getVm() { return vm; }
 	 */
 	public String getVMVersion() {
-		return vmVersion_;
+		VMMetadata metadata = metadata_;
+		return metadata == null ? null : metadata.getVMVersion();
 	}
 
 	public String getOSUser() {
-		return osUser_;
+		VMMetadata metadata = metadata_;
+		return metadata == null ? null : metadata.getOSUser();
 	}
 
 	public long getGcTime() {
@@ -451,32 +736,7 @@ public class VMInfo {
 	}
 
 	public Map<String, String> getSystemProperties() {
-		return systemProperties_;
-	}
-
-	/**
-	 * Extracts the jvmtop "short version" out of different properties TODO: should
-	 * this be refactored?
-	 *
-	 * @param runtimeMXBean
-	 * @return
-	 */
-	private String extractShortVer() {
-		String vmVer = systemProperties_.get("java.runtime.version");
-
-		String vmVendor = systemProperties_.get("java.vendor");
-
-		Pattern pattern = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)-.*");
-		Matcher matcher = pattern.matcher(vmVer);
-		if (matcher.matches()) {
-			return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
-		} else {
-			pattern = Pattern.compile(".*-(.*)_.*");
-			matcher = pattern.matcher(vmVer);
-			if (matcher.matches()) {
-				return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
-			}
-			return vmVer;
-		}
+		VMMetadata metadata = metadata_;
+		return metadata == null ? null : metadata.getSystemProperties();
 	}
 }
@@ -26,5 +26,5 @@ package com.jvmtop.monitor;
  * @author paru
  */
 public enum VMInfoState {
-	INIT, ERROR_DURING_ATTACH, ATTACHED, ATTACHED_UPDATE_ERROR, DETACHED, CONNECTION_REFUSED, UNKNOWN_ERROR
+	INIT, ATTACHING, ERROR_DURING_ATTACH, ATTACHED, ATTACHED_UPDATE_ERROR, DETACHED, CONNECTION_REFUSED, UNKNOWN_ERROR
 }
\ No newline at end of file
@@ -0,0 +1,163 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.monitor;
+
+import java.io.IOException;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.RuntimeMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.jvmtop.openjdk.tools.ProxyClient;
+
+/**
+ * Data of a jvm which does not change while it is running (system properties,
+ * version, input arguments, user and number of processors). It is fetched once
+ * per connection, see {@link ProxyClient#getConnectionCount()}, or read from
+ * the perf data of the jvm.
+ *
+ * @author paru
+ */
+public final class VMMetadata {
+	private static final Pattern OLD_VERSION_PATTERN = Pattern.compile("[0-9]\\.([0-9])\\.0_([0-9]+)-.*");
+	private static final Pattern BUILD_VERSION_PATTERN = Pattern.compile(".*-(.*)_.*");
+
+	private final int connection_;
+	private final Map<String, String> systemProperties_;
+	private final List<String> inputArguments_;
+	private final String vmVersion_;
+	private final String osUser_;
+	private final int availableProcessors_;
+
+	private VMMetadata(int connection, Map<String, String> systemProperties, List<String> inputArguments,
+			int availableProcessors) {
+		super();
+		connection_ = connection;
+		systemProperties_ = Collections.unmodifiableMap(new HashMap<String, String>(systemProperties));
+		inputArguments_ = Collections.unmodifiableList(inputArguments);
+		vmVersion_ = extractShortVer(systemProperties);
+		osUser_ = systemProperties.get("user.name");
+		availableProcessors_ = availableProcessors;
+	}
+
+	/**
+	 * Fetches the data of the jvm the given client is connected to
+	 *
+	 * @param proxyClient
+	 * @return
+	 * @throws IOException
+	 */
+	public static VMMetadata load(ProxyClient proxyClient) throws IOException {
+		int connection = proxyClient.getConnectionCount();
+		RuntimeMXBean runtimeMXBean = proxyClient.getRuntimeMXBean();
+		OperatingSystemMXBean osBean = proxyClient.getSunOperatingSystemMXBean();
+		return new VMMetadata(connection, runtimeMXBean.getSystemProperties(), runtimeMXBean.getInputArguments(),
+				osBean.getAvailableProcessors());
+	}
+
+	/**
+	 * Reads the data of a jvm from its perf data, which contains a subset of
+	 * the system properties only
+	 *
+	 * @param perfData
+	 * @return
+	 */
+	public static VMMetadata load(PerfDataSource perfData) {
+		Map<String, String> systemProperties = perfData.getStrings("java.property.");
+		String command = perfData.getString("sun.rt.javaCommand");
+		if (command != null) {
+			systemProperties.put("sun.java.command", command);
+		}
+		systemProperties.put("user.name", perfData.getUser());
+		String vmArgs = perfData.getString("java.rt.vmArgs");
+		List<String> inputArguments = vmArgs == null || vmArgs.trim().isEmpty() ? Collections.<String> emptyList()
+				: Arrays.asList(vmArgs.trim().split(" "));
+		// the perf data is local, so is the jvm
+		return new VMMetadata(0, systemProperties, inputArguments, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param proxyClient
+	 * @return true if the client has reconnected since this data was fetched
+	 */
+	public boolean isStale(ProxyClient proxyClient) {
+		return proxyClient.getConnectionCount() != connection_;
+	}
+
+	public Map<String, String> getSystemProperties() {
+		return systemProperties_;
+	}
+
+	public List<String> getInputArguments() {
+		return inputArguments_;
+	}
+
+	public String getVMVersion() {
+		return vmVersion_;
+	}
+
+	public String getOSUser() {
+		return osUser_;
+	}
+
+	public int getAvailableProcessors() {
+		return availableProcessors_;
+	}
+
+	/**
+	 * Extracts the jvmtop "short version" out of different properties TODO: should
+	 * this be refactored?
+	 *
+	 * @param systemProperties
+	 * @return
+	 */
+	private static String extractShortVer(Map<String, String> systemProperties) {
+		String vmVer = systemProperties.get("java.runtime.version");
+		if (vmVer == null) {
+			// not part of the perf data
+			vmVer = systemProperties.get("java.vm.version");
+		}
+
+		String vmVendor = systemProperties.get("java.vendor");
+		if (vmVendor == null) {
+			vmVendor = systemProperties.get("java.vm.vendor");
+		}
+		if (vmVer == null || vmVendor == null || vmVendor.isEmpty()) {
+			return vmVer;
+		}
+
+		Matcher matcher = OLD_VERSION_PATTERN.matcher(vmVer);
+		if (matcher.matches()) {
+			return vmVendor.charAt(0) + matcher.group(1) + "U" + matcher.group(2);
+		} else {
+			matcher = BUILD_VERSION_PATTERN.matcher(vmVer);
+			if (matcher.matches()) {
+				return vmVendor.charAt(0) + matcher.group(1).substring(2, 6);
+			}
+			return vmVer;
+		}
+	}
+}
@@ -172,25 +172,50 @@ public class LocalVirtualMachine {
             }
             if (vmid instanceof Integer) {
                 int pid = ((Integer) vmid).intValue();
-                String name = vmid.toString(); // default to pid if name not available
-                boolean attachable = false;
-                String address = null;
-                try {
-                    MonitoredVm mvm = host.getMonitoredVm(new VmIdentifier(name));
-                    // use the command line as the display name
-                    name = MonitoredVmUtil.commandLine(mvm);
-                    attachable = MonitoredVmUtil.isAttachable(mvm);
-                    address = ConnectorAddressLink.importFrom(pid);
-                    mvm.detach();
-                } catch (Exception x) {
-                    // ignore
+                LocalVirtualMachine lvm = getMonitoredVirtualMachine(host, pid);
+                if (lvm == null) {
+                    // default to pid if name not available
+                    lvm = new LocalVirtualMachine(pid, vmid.toString(), false, null);
                 }
-                map.put((Integer) vmid, new LocalVirtualMachine(pid, name, attachable,
-                        address));
+                map.put((Integer) vmid, lvm);
             }
         }
     }
 
+    // This method returns the virtual machine with the given pid, based on
+    // its instrumentation only, that is without attaching to it. Returns null
+    // if the instrumentation cannot be read (yet).
+    public static LocalVirtualMachine getMonitoredVirtualMachine(int pid) {
+        if (J9Mode) {
+            return null;
+        }
+        try {
+            MonitoredHost host = MonitoredHost.getMonitoredHost(new HostIdentifier((String) null));
+            return getMonitoredVirtualMachine(host, pid);
+        } catch (java.net.URISyntaxException sx) {
+            throw new InternalError(sx.getMessage());
+        } catch (MonitorException mx) {
+            throw new InternalError(mx.getMessage());
+        }
+    }
+
+    private static LocalVirtualMachine getMonitoredVirtualMachine(MonitoredHost host, int pid) {
+        try {
+            MonitoredVm mvm = host.getMonitoredVm(new VmIdentifier(String.valueOf(pid)));
+            try {
+                // use the command line as the display name
+                String name = MonitoredVmUtil.commandLine(mvm);
+                boolean attachable = MonitoredVmUtil.isAttachable(mvm);
+                String address = ConnectorAddressLink.importFrom(pid);
+                return new LocalVirtualMachine(pid, name, attachable, address);
+            } finally {
+                mvm.detach();
+            }
+        } catch (Exception x) {
+            return null;
+        }
+    }
+
     private static final String LOCAL_CONNECTOR_ADDRESS_PROP = "com.sun.management.jmxremote.localConnectorAddress";
 
     private static void getAttachableVMs(Map<Integer, LocalVirtualMachine> map,
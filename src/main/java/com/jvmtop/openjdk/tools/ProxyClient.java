@@ -45,8 +45,6 @@ import java.io.IOException;
 import java.lang.management.*;
 import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.rmi.NotBoundException;
 import java.rmi.Remote;
@@ -86,7 +84,11 @@ public class ProxyClient {
     private JMXServiceURL jmxUrl = null;
     private MBeanServerConnection mbsc = null;
     private SnapshotMBeanServerConnection server = null;
+    // resolved on connect, null without platform MXBeans
+    private AttributeHandle processCpuTime = null;
+    private AttributeHandle allThreadIds = null;
     private JMXConnector jmxc = null;
+    private volatile int connectionCount = 0;
     private RMIServer stub = null;
     private static final SslRMIClientSocketFactory sslRMIClientSocketFactory =
             new SslRMIClientSocketFactory();
@@ -106,6 +108,7 @@ public class ProxyClient {
     private ThreadMXBean threadMBean = null;
 
     private java.lang.management.OperatingSystemMXBean sunOperatingSystemMXBean = null;
+    private com.sun.management.ThreadMXBean sunThreadMXBean = null;
 
     //    private HotSpotDiagnosticMXBean                  hotspotDiagnosticMXBean = null;
 
@@ -315,10 +318,19 @@ public class ProxyClient {
         }
     }
 
+    /**
+     * Returns the number of successful connects, so that data
+     * cached per connection can be invalidated on reconnect.
+     */
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
     public void connect() throws Exception {
         setConnectionState(ConnectionState.CONNECTING);
         try {
             tryConnect();
+            connectionCount++;
             setConnectionState(ConnectionState.CONNECTED);
         } catch (Exception e) {
             setConnectionState(ConnectionState.DISCONNECTED);
@@ -396,6 +408,11 @@ public class ProxyClient {
 
                 on = new ObjectName(COMPILATION_MXBEAN_NAME);
                 this.hasCompilationMXBean = server.isRegistered(on);
+
+                this.processCpuTime = server.resolve(
+                        new ObjectName(OPERATING_SYSTEM_MXBEAN_NAME), "ProcessCpuTime");
+                this.allThreadIds = server.resolve(
+                        new ObjectName(THREAD_MXBEAN_NAME), "AllThreadIds");
             }
         } catch (MalformedObjectNameException e) {
             // should not reach here
@@ -571,6 +588,7 @@ public class ProxyClient {
         runtimeMBean = null;
         threadMBean = null;
         sunOperatingSystemMXBean = null;
+        sunThreadMXBean = null;
         garbageCollectorMBeans = null;
         // Set connection state to DISCONNECTED
         if (!isDead) {
@@ -793,6 +811,33 @@ public class ProxyClient {
         return sunOperatingSystemMXBean;
     }
 
+    /**
+     * Returns the HotSpot-specific ThreadMXBean which supports bulk
+     * operations like getThreadCpuTime(long[]), or null if the
+     * monitored jvm does not provide it.
+     */
+    public synchronized com.sun.management.ThreadMXBean
+    getSunThreadMXBean() throws IOException {
+
+        try {
+            ObjectName on = new ObjectName(THREAD_MXBEAN_NAME);
+            if (hasPlatformMXBeans && sunThreadMXBean == null) {
+                if (server.isInstanceOf(on,
+                        "com.sun.management.ThreadMXBean")) {
+                    sunThreadMXBean =
+                            newPlatformMXBeanProxy(server,
+                                    THREAD_MXBEAN_NAME,
+                                    com.sun.management.ThreadMXBean.class);
+                }
+            }
+        } catch (InstanceNotFoundException e) {
+            return null;
+        } catch (MalformedObjectNameException e) {
+            return null; // should never reach here
+        }
+        return sunThreadMXBean;
+    }
+
   /*
       public synchronized HotSpotDiagnosticMXBean getHotSpotDiagnosticMXBean() throws IOException {
           if (hasHotSpotDiagnosticMXBean && hotspotDiagnosticMXBean == null) {
@@ -920,6 +965,44 @@ public class ProxyClient {
          * Flush all cached values of attributes.
          */
         public void flush();
+
+        /**
+         * Resolves an attribute once, reading it by the returned handle does
+         * not look up the MBean or the attribute by name anymore. The
+         * attribute is fetched together with the other cached attributes of
+         * its MBean.
+         */
+        public AttributeHandle resolve(ObjectName objName, String attrName);
+
+        /**
+         * Returns the cached value of the given attribute, all attributes of
+         * its MBean are fetched if the cache has been flushed.
+         */
+        public Object get(AttributeHandle attribute)
+                throws JMException, IOException;
+
+        /**
+         * Returns the cached value of the given numeric attribute, see
+         * {@link #get(AttributeHandle)}.
+         */
+        public long getLong(AttributeHandle attribute)
+                throws JMException, IOException;
+    }
+
+    /**
+     * An attribute resolved by
+     * {@link SnapshotMBeanServerConnection#resolve(ObjectName, String)},
+     * only valid for the connection which resolved it.
+     */
+    public static final class AttributeHandle {
+        private final SnapshotConnection.CachedAttributes cached;
+        private final int index;
+
+        private AttributeHandle(SnapshotConnection.CachedAttributes cached,
+                                int index) {
+            this.cached = cached;
+            this.index = index;
+        }
     }
 
     public static class Snapshot {
@@ -928,58 +1011,136 @@ public class ProxyClient {
 
         public static SnapshotMBeanServerConnection
         newSnapshot(MBeanServerConnection mbsc) {
-            final InvocationHandler ih = new SnapshotInvocationHandler(mbsc);
-            return (SnapshotMBeanServerConnection) Proxy.newProxyInstance(
-                    Snapshot.class.getClassLoader(),
-                    new Class[]{SnapshotMBeanServerConnection.class},
-                    ih);
+            return new SnapshotConnection(mbsc);
         }
     }
 
-    static class SnapshotInvocationHandler implements InvocationHandler {
+    //
+    // Delegates to the wrapped connection directly instead of going through
+    // a reflective proxy. The learned attributes of an MBean are indexed in
+    // the order they are learned, their values are kept in an array of the
+    // same order. Flush only invalidates the values by incrementing the
+    // generation, resolved AttributeHandles read them by index.
+    //
+    static class SnapshotConnection implements SnapshotMBeanServerConnection {
+
+        // marks an attribute which was omitted from the getAttributes result
+        private static final Object MISSING = new Object();
+        private static final String[] NO_NAMES = new String[0];
+        private static final Object[] NO_VALUES = new Object[0];
 
         private final MBeanServerConnection conn;
-        private Map<ObjectName, NameValueMap> cachedValues = newMap();
-        private Map<ObjectName, Set<String>> cachedNames = newMap();
+        private final Map<ObjectName, CachedAttributes> cachedAttributes =
+                new HashMap<ObjectName, CachedAttributes>();
+        private int generation = 0;
+
+        static final class CachedAttributes {
+            private final ObjectName objName;
+            private final Map<String, Integer> indices =
+                    new HashMap<String, Integer>();
+            private String[] names = NO_NAMES;
+            private Object[] values = NO_VALUES;
+            // generation of the values, -1 if they have to be fetched
+            private int generation = -1;
+
+            CachedAttributes(ObjectName objName) {
+                this.objName = objName;
+            }
 
-        @SuppressWarnings("serial")
-        private static final class NameValueMap
-                extends HashMap<String, Object> {}
+            int add(String attrName) {
+                Integer index = indices.get(attrName);
+                if (index != null) {
+                    return index;
+                }
+                int newIndex = names.length;
+                names = Arrays.copyOf(names, newIndex + 1);
+                names[newIndex] = attrName;
+                values = Arrays.copyOf(values, newIndex + 1);
+                indices.put(attrName, newIndex);
+                generation = -1;
+                return newIndex;
+            }
+
+            Object get(String attrName) {
+                Integer index = indices.get(attrName);
+                return index != null ? values[index] : MISSING;
+            }
+
+            void refresh(MBeanServerConnection conn, int currentGeneration)
+                    throws InstanceNotFoundException, ReflectionException,
+                           IOException {
+                if (generation == currentGeneration) {
+                    return;
+                }
+                final AttributeList attrs = conn.getAttributes(objName, names);
+                Arrays.fill(values, MISSING);
+                int next = 0;
+                for (int i = 0; i < attrs.size(); i++) {
+                    Attribute attr = (Attribute) attrs.get(i);
+                    // the values are usually returned in the requested order
+                    int index;
+                    if (next < names.length && names[next].equals(attr.getName())) {
+                        index = next;
+                    } else {
+                        Integer found = indices.get(attr.getName());
+                        if (found == null) {
+                            continue;
+                        }
+                        index = found;
+                    }
+                    values[index] = attr.getValue();
+                    next = index + 1;
+                }
+                generation = currentGeneration;
+            }
+        }
 
-        SnapshotInvocationHandler(MBeanServerConnection conn) {
+        SnapshotConnection(MBeanServerConnection conn) {
             this.conn = conn;
         }
 
-        synchronized void flush() {
-            cachedValues = newMap();
+        public synchronized void flush() {
+            generation++;
         }
 
-        public Object invoke(Object proxy, Method method, Object[] args)
-                throws Throwable {
-            final String methodName = method.getName();
-            if (methodName.equals("getAttribute")) {
-                return getAttribute((ObjectName) args[0], (String) args[1]);
-            } else if (methodName.equals("getAttributes")) {
-                return getAttributes((ObjectName) args[0], (String[]) args[1]);
-            } else if (methodName.equals("flush")) {
-                flush();
-                return null;
-            } else {
-                try {
-                    return method.invoke(conn, args);
-                } catch (InvocationTargetException e) {
-                    throw e.getCause();
-                }
+        public synchronized AttributeHandle resolve(ObjectName objName,
+                                                    String attrName) {
+            CachedAttributes cached = getCachedAttributes(objName);
+            return new AttributeHandle(cached, cached.add(attrName));
+        }
+
+        public Object get(AttributeHandle attribute)
+                throws JMException, IOException {
+            final CachedAttributes cached = attribute.cached;
+            Object value;
+            synchronized (this) {
+                cached.refresh(conn, generation);
+                value = cached.values[attribute.index];
             }
+            if (value != MISSING) {
+                return value;
+            }
+            // omitted from the getAttributes result, see getAttribute
+            return conn.getAttribute(cached.objName,
+                    cached.names[attribute.index]);
+        }
+
+        public long getLong(AttributeHandle attribute)
+                throws JMException, IOException {
+            return ((Number) get(attribute)).longValue();
         }
 
-        private Object getAttribute(ObjectName objName, String attrName)
+        public Object getAttribute(ObjectName objName, String attrName)
                 throws MBeanException, InstanceNotFoundException,
                        AttributeNotFoundException, ReflectionException, IOException {
-            final NameValueMap values = getCachedAttributes(
-                    objName, Collections.singleton(attrName));
-            Object value = values.get(attrName);
-            if (value != null || values.containsKey(attrName)) {
+            Object value;
+            synchronized (this) {
+                CachedAttributes cached = getCachedAttributes(objName);
+                cached.add(attrName);
+                cached.refresh(conn, generation);
+                value = cached.get(attrName);
+            }
+            if (value != MISSING) {
                 return value;
             }
             // Not in cache, presumably because it was omitted from the
@@ -988,85 +1149,214 @@ public class ProxyClient {
             return conn.getAttribute(objName, attrName);
         }
 
-        private AttributeList getAttributes(
+        public AttributeList getAttributes(
                 ObjectName objName, String[] attrNames) throws
                                                         InstanceNotFoundException, ReflectionException, IOException {
-            final NameValueMap values = getCachedAttributes(
-                    objName,
-                    new TreeSet<String>(Arrays.asList(attrNames)));
-            final AttributeList list = new AttributeList();
-            for (String attrName : attrNames) {
-                final Object value = values.get(attrName);
-                if (value != null || values.containsKey(attrName)) {
-                    list.add(new Attribute(attrName, value));
+            final AttributeList list = new AttributeList(attrNames.length);
+            synchronized (this) {
+                CachedAttributes cached = getCachedAttributes(objName);
+                for (String attrName : attrNames) {
+                    cached.add(attrName);
+                }
+                cached.refresh(conn, generation);
+                for (String attrName : attrNames) {
+                    final Object value = cached.get(attrName);
+                    if (value != MISSING) {
+                        list.add(new Attribute(attrName, value));
+                    }
                 }
             }
             return list;
         }
 
-        private synchronized NameValueMap getCachedAttributes(
-                ObjectName objName, Set<String> attrNames) throws
-                                                           InstanceNotFoundException, ReflectionException, IOException {
-            NameValueMap values = cachedValues.get(objName);
-            if (values != null && values.keySet().containsAll(attrNames)) {
-                return values;
+        private CachedAttributes getCachedAttributes(ObjectName objName) {
+            CachedAttributes cached = cachedAttributes.get(objName);
+            if (cached == null) {
+                cached = new CachedAttributes(objName);
+                cachedAttributes.put(objName, cached);
             }
-            attrNames = new TreeSet<String>(attrNames);
-            Set<String> oldNames = cachedNames.get(objName);
-            if (oldNames != null) {
-                attrNames.addAll(oldNames);
-            }
-            values = new NameValueMap();
-            final AttributeList attrs = conn.getAttributes(
-                    objName,
-                    attrNames.toArray(new String[attrNames.size()]));
-            for (Attribute attr : attrs.asList()) {
-                values.put(attr.getName(), attr.getValue());
-            }
-            cachedValues.put(objName, values);
-            cachedNames.put(objName, attrNames);
-            return values;
+            return cached;
+        }
+
+        public ObjectInstance createMBean(String className, ObjectName name)
+                throws ReflectionException, InstanceAlreadyExistsException,
+                       MBeanRegistrationException, MBeanException,
+                       NotCompliantMBeanException, IOException {
+            return conn.createMBean(className, name);
+        }
+
+        public ObjectInstance createMBean(String className, ObjectName name,
+                                          ObjectName loaderName)
+                throws ReflectionException, InstanceAlreadyExistsException,
+                       MBeanRegistrationException, MBeanException,
+                       NotCompliantMBeanException, InstanceNotFoundException,
+                       IOException {
+            return conn.createMBean(className, name, loaderName);
+        }
+
+        public ObjectInstance createMBean(String className, ObjectName name,
+                                          Object[] params, String[] signature)
+                throws ReflectionException, InstanceAlreadyExistsException,
+                       MBeanRegistrationException, MBeanException,
+                       NotCompliantMBeanException, IOException {
+            return conn.createMBean(className, name, params, signature);
+        }
+
+        public ObjectInstance createMBean(String className, ObjectName name,
+                                          ObjectName loaderName, Object[] params,
+                                          String[] signature)
+                throws ReflectionException, InstanceAlreadyExistsException,
+                       MBeanRegistrationException, MBeanException,
+                       NotCompliantMBeanException, InstanceNotFoundException,
+                       IOException {
+            return conn.createMBean(className, name, loaderName, params,
+                    signature);
+        }
+
+        public void unregisterMBean(ObjectName name)
+                throws InstanceNotFoundException, MBeanRegistrationException,
+                       IOException {
+            conn.unregisterMBean(name);
+        }
+
+        public ObjectInstance getObjectInstance(ObjectName name)
+                throws InstanceNotFoundException, IOException {
+            return conn.getObjectInstance(name);
+        }
+
+        public Set<ObjectInstance> queryMBeans(ObjectName name, QueryExp query)
+                throws IOException {
+            return conn.queryMBeans(name, query);
         }
 
-        // See http://www.artima.com/weblogs/viewpost.jsp?thread=79394
-        private static <K, V> Map<K, V> newMap() {
-            return new HashMap<K, V>();
+        public Set<ObjectName> queryNames(ObjectName name, QueryExp query)
+                throws IOException {
+            return conn.queryNames(name, query);
+        }
+
+        public boolean isRegistered(ObjectName name) throws IOException {
+            return conn.isRegistered(name);
+        }
+
+        public Integer getMBeanCount() throws IOException {
+            return conn.getMBeanCount();
+        }
+
+        public void setAttribute(ObjectName name, Attribute attribute)
+                throws InstanceNotFoundException, AttributeNotFoundException,
+                       InvalidAttributeValueException, MBeanException,
+                       ReflectionException, IOException {
+            conn.setAttribute(name, attribute);
+        }
+
+        public AttributeList setAttributes(ObjectName name,
+                                           AttributeList attributes)
+                throws InstanceNotFoundException, ReflectionException,
+                       IOException {
+            return conn.setAttributes(name, attributes);
+        }
+
+        public Object invoke(ObjectName name, String operationName,
+                             Object[] params, String[] signature)
+                throws InstanceNotFoundException, MBeanException,
+                       ReflectionException, IOException {
+            return conn.invoke(name, operationName, params, signature);
+        }
+
+        public String getDefaultDomain() throws IOException {
+            return conn.getDefaultDomain();
+        }
+
+        public String[] getDomains() throws IOException {
+            return conn.getDomains();
+        }
+
+        public void addNotificationListener(ObjectName name,
+                                            NotificationListener listener,
+                                            NotificationFilter filter,
+                                            Object handback)
+                throws InstanceNotFoundException, IOException {
+            conn.addNotificationListener(name, listener, filter, handback);
+        }
+
+        public void addNotificationListener(ObjectName name,
+                                            ObjectName listener,
+                                            NotificationFilter filter,
+                                            Object handback)
+                throws InstanceNotFoundException, IOException {
+            conn.addNotificationListener(name, listener, filter, handback);
+        }
+
+        public void removeNotificationListener(ObjectName name,
+                                               ObjectName listener)
+                throws InstanceNotFoundException, ListenerNotFoundException,
+                       IOException {
+            conn.removeNotificationListener(name, listener);
+        }
+
+        public void removeNotificationListener(ObjectName name,
+                                               ObjectName listener,
+                                               NotificationFilter filter,
+                                               Object handback)
+                throws InstanceNotFoundException, ListenerNotFoundException,
+                       IOException {
+            conn.removeNotificationListener(name, listener, filter, handback);
+        }
+
+        public void removeNotificationListener(ObjectName name,
+                                               NotificationListener listener)
+                throws InstanceNotFoundException, ListenerNotFoundException,
+                       IOException {
+            conn.removeNotificationListener(name, listener);
+        }
+
+        public void removeNotificationListener(ObjectName name,
+                                               NotificationListener listener,
+                                               NotificationFilter filter,
+                                               Object handback)
+                throws InstanceNotFoundException, ListenerNotFoundException,
+                       IOException {
+            conn.removeNotificationListener(name, listener, filter, handback);
+        }
+
+        public MBeanInfo getMBeanInfo(ObjectName name)
+                throws InstanceNotFoundException, IntrospectionException,
+                       ReflectionException, IOException {
+            return conn.getMBeanInfo(name);
+        }
+
+        public boolean isInstanceOf(ObjectName name, String className)
+                throws InstanceNotFoundException, IOException {
+            return conn.isInstanceOf(name, className);
         }
     }
 
     /**
-     * @return
+     * @return the ids of all live threads, read from the attribute cache
      */
-    public long getProcessCpuTime() throws Exception {
-        try {
-            String osMXBeanClassName = "com.sun.management.OperatingSystemMXBean";
-            if (lvm.isJ9Mode()) {
-                osMXBeanClassName = "com.ibm.lang.management.OperatingSystemMXBean";
-            }
-
-            if (Proxy.isProxyClass(getOperatingSystemMXBean().getClass())) {
-                Long cpuTime = (Long) Proxy
-                        .getInvocationHandler(getOperatingSystemMXBean())
-                        .invoke(
-                                getOperatingSystemMXBean(),
-                                Class.forName(osMXBeanClassName).getMethod("getProcessCpuTime"),
-                                null);
-
-                if (lvm.isJ9Mode()) {
-                    //this is very strange, J9 does return the value in "100ns units"
-                    //which violates the management spec
-                    //see http://publib.boulder.ibm.com/infocenter/javasdk/v6r0/index.jsp?topic=%2Fcom.ibm.java.api.60.doc%2Fcom.ibm.lang.management%2Fcom%2Fibm%2Flang%2Fmanagement%2FOperatingSystemMXBean.html
-                    return cpuTime * 100;
-                } else {
-                    return cpuTime;
-                }
+    public long[] getAllThreadIds() throws IOException, JMException {
+        if (allThreadIds == null) {
+            return getThreadMXBean().getAllThreadIds();
+        }
+        return (long[]) server.get(allThreadIds);
+    }
 
-            } else {
-                throw new UnsupportedOperationException(
-                        "Unsupported JDK, please report bug");
-            }
-        } catch (Throwable e) {
-            throw new RuntimeException(e);
+    /**
+     * @return the cpu time of the process in nanoseconds, read from the
+     * attribute cache
+     */
+    public long getProcessCpuTime() throws Exception {
+        if (processCpuTime == null) {
+            throw new UnsupportedOperationException(
+                    "Unsupported JDK, please report bug");
+        }
+        long cpuTime = server.getLong(processCpuTime);
+        if (lvm != null && lvm.isJ9Mode()) {
+            //this is very strange, J9 does return the value in "100ns units"
+            //which violates the management spec
+            //see http://publib.boulder.ibm.com/infocenter/javasdk/v6r0/index.jsp?topic=%2Fcom.ibm.java.api.60.doc%2Fcom.ibm.lang.management%2Fcom%2Fibm%2Flang%2Fmanagement%2FOperatingSystemMXBean.html
+            return cpuTime * 100;
         }
+        return cpuTime;
     }
 }
@@ -22,53 +22,180 @@ package com.jvmtop.profiler;
 
 import com.jvmtop.monitor.VMInfo;
 
+import java.io.IOException;
 import java.lang.Thread.State;
+import java.lang.management.LockInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Experimental and very basic sampling-based CPU-Profiler.
  * <p>
  * It uses package excludes to filter common 3rd party libraries which often
  * distort application problems.
+ * <p>
+ * In wall-clock mode, it samples blocked and waiting threads instead, weighted
+ * by the elapsed time between two samples, to reveal where threads spend their
+ * time off the cpu.
  *
  * @author paru
  */
 public class CPUSampler {
 	private ThreadMXBean threadMxBean_ = null;
-	private ConcurrentMap<String, MethodStats> data_ = new ConcurrentHashMap<String, MethodStats>();
+	// HotSpot-specific bean, allows to fetch cpu times of all threads at once
+	private com.sun.management.ThreadMXBean bulkThreadMxBean_ = null;
+	private FrameInterner frames_ = new FrameInterner();
+	private FrameCounters selfTime_ = new FrameCounters(frames_);
+	private CallTree callTree_ = new CallTree(frames_);
+	// recent exclusive time in buckets of one second
+	private FrameTimeline timeline_ = new FrameTimeline(frames_, 1000000000L, TIMELINE_SECONDS);
+	private int[] stackFrames_ = new int[256];
+	private CollapsedStackWriter collapsedStackWriter_ = null;
 	private long beginCPUTime_ = 0;
 	private AtomicLong totalThreadCPUTime_ = new AtomicLong(0);
 
-	// TODO: these exception list should be expanded to the most common 3rd-party
-	// library packages
-	private List<String> filter = Arrays.asList("org.eclipse.", "org.apache.", "java.", "sun.", "com.sun.", "javax.",
-			"oracle.", "com.trilead.", "org.junit.", "org.mockito.", "org.hibernate.", "com.ibm.", "com.caucho.");
+	/**
+	 * The number of seconds covered by the windowed and decayed rankings
+	 */
+	public static final int TIMELINE_SECONDS = 120;
+
+	/**
+	 * The thread states which are sampled in wall-clock mode
+	 */
+	private static final State[] WAIT_STATES = { State.BLOCKED, State.WAITING, State.TIMED_WAITING };
+
+	// maximum number of distinct lock instances, further locks are aggregated by class
+	private static final int MAX_LOCKS = 4096;
+
+	private final boolean wallClock_;
+	private FrameCounters[] stateTime_ = new FrameCounters[WAIT_STATES.length];
+	private FrameInterner locks_ = new FrameInterner();
+	private FrameCounters lockTime_ = new FrameCounters(locks_);
+
+	private static final byte FRAME_KNOWN = 1;
+	private static final byte FRAME_FILTERED = 2;
+	private static final byte FRAME_SLEEPING = 4;
+
+	private PackageFilter filter_;
 
-	private ConcurrentMap<Long, Long> threadCPUTime = new ConcurrentHashMap<Long, Long>();
+	private ThreadGrouper grouper_;
+	// exclusive time per thread group, indexed by group id
+	private List<FrameCounters> groupTime_ = new ArrayList<FrameCounters>();
+	// wall-clock time per thread group and wait state, indexed by group id
+	private List<FrameCounters[]> groupStateTime_ = new ArrayList<FrameCounters[]>();
+
+	// filter decisions per interned frame, a combination of the FRAME_* flags
+	private byte[] frameFlags_ = new byte[1024];
+
+	// cpu time per thread id at the previous sample, only accessed by update()
+	private LongLongTable threadCPUTime_ = new LongLongTable();
 
 	private AtomicLong updateCount_ = new AtomicLong(0);
 
+	private AtomicLong sampleCount_ = new AtomicLong(0);
+
+	private AtomicLong totalSampleLatency_ = new AtomicLong(0);
+
+	private volatile long lastSampleLatency_ = 0;
+
+	// System.nanoTime() at which the thread cpu times of the previous sample were taken
+	private long lastSampleTimestamp_ = -1;
+
+	private AtomicLong sampledWallTime_ = new AtomicLong(0);
+
 	private VMInfo vmInfo_;
 
 	public CPUSampler(VMInfo vmInfo) throws Exception {
+		this(vmInfo, new PackageFilter(), new ThreadGrouper(), false);
+	}
+
+	/**
+	 * @param vmInfo    the vm to be sampled
+	 * @param filter    decides which frames are part of the profile
+	 * @param grouper   assigns the sampled threads to groups
+	 * @param wallClock if true, the wall-clock time of blocked and waiting threads
+	 *                  is sampled instead of the cpu time of runnable threads
+	 * @throws Exception
+	 */
+	public CPUSampler(VMInfo vmInfo, PackageFilter filter, ThreadGrouper grouper, boolean wallClock)
+			throws Exception {
 		super();
+		filter_ = filter;
+		grouper_ = grouper;
+		wallClock_ = wallClock;
+		for (int i = 0; i < stateTime_.length; i++) {
+			stateTime_[i] = new FrameCounters(frames_);
+		}
 		threadMxBean_ = vmInfo.getThreadMXBean();
+		bulkThreadMxBean_ = vmInfo.getProxyClient().getSunThreadMXBean();
 		beginCPUTime_ = vmInfo.getProxyClient().getProcessCpuTime();
 		vmInfo_ = vmInfo;
 	}
 
 	public List<MethodStats> getTop(int limit) {
-		ArrayList<MethodStats> statList = new ArrayList<MethodStats>(data_.values());
-		Collections.sort(statList);
-		return statList.subList(0, Math.min(limit, statList.size()));
+		return selfTime_.getTop(limit);
+	}
+
+	/**
+	 * Returns the methods with the highest exclusive time within the given thread
+	 * group
+	 *
+	 * @param group the id of the group, see {@link #getThreadGrouper()}
+	 * @param limit
+	 * @return
+	 */
+	public List<MethodStats> getTop(int group, int limit) {
+		return getGroupTime(group).getTop(limit);
+	}
+
+	/**
+	 * @param group the id of the group, see {@link #getThreadGrouper()}
+	 * @return the total time sampled in the given thread group
+	 */
+	public long getGroupTotal(int group) {
+		return getGroupTime(group).getTotal();
+	}
+
+	public ThreadGrouper getThreadGrouper() {
+		return grouper_;
+	}
+
+	/**
+	 * Returns the methods with the highest inclusive time, that is the time spent
+	 * in the method itself or one of its (non-filtered) callees.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public List<MethodStats> getTopInclusive(int limit) {
+		return callTree_.getTopInclusive(limit);
+	}
+
+	/**
+	 * @return the exclusive time of the last {@link #TIMELINE_SECONDS} seconds
+	 */
+	public FrameTimeline getTimeline() {
+		return timeline_;
+	}
+
+	public CallTree getCallTree() {
+		return callTree_;
+	}
+
+	/**
+	 * Streams every acquired sample to the given writer, or stops streaming if
+	 * null is passed.
+	 *
+	 * @param writer
+	 */
+	public void setCollapsedStackWriter(CollapsedStackWriter writer) {
+		collapsedStackWriter_ = writer;
 	}
 
 	public long getTotal() {
@@ -76,53 +203,314 @@ public class CPUSampler {
 	}
 
 	public void update() throws Exception {
+		long sampleStart = System.nanoTime();
 		boolean samplesAcquired = false;
-		for (ThreadInfo ti : threadMxBean_.dumpAllThreads(false, false)) {
-			long cpuTime = threadMxBean_.getThreadCpuTime(ti.getThreadId());
-			Long tCPUTime = threadCPUTime.get(ti.getThreadId());
-			if (tCPUTime == null) {
-				tCPUTime = 0L;
-			} else {
-				Long deltaCpuTime = (cpuTime - tCPUTime);
-
-				if (ti.getStackTrace().length > 0 && ti.getThreadState() == State.RUNNABLE) {
-					for (StackTraceElement stElement : ti.getStackTrace()) {
-						if (isReallySleeping(stElement)) {
-							break;
-						}
-						if (isFiltered(stElement)) {
-							continue;
-						}
-						String key = stElement.getClassName() + "." + stElement.getMethodName();
-						data_.putIfAbsent(key, new MethodStats(stElement.getClassName(), stElement.getMethodName()));
-						data_.get(key).getHits().addAndGet(deltaCpuTime);
-						totalThreadCPUTime_.addAndGet(deltaCpuTime);
+		ThreadInfo[] threadInfos = threadMxBean_.dumpAllThreads(false, false);
+		// thread cpu times are not needed to measure wall-clock time
+		long[] cpuTimes = wallClock_ ? null : getThreadCpuTimes(threadInfos);
+		threadCPUTime_.nextGeneration();
+		long sampleTimestamp = System.nanoTime();
+		long interval = lastSampleTimestamp_ >= 0 ? sampleTimestamp - lastSampleTimestamp_ : 0;
+		for (int i = 0; i < threadInfos.length; i++) {
+			ThreadInfo ti = threadInfos[i];
+			if (wallClock_) {
+				int state = getWaitStateIndex(ti.getThreadState());
+				if (interval > 0 && state >= 0) {
+					int group = grouper_.getGroup(ti.getThreadName());
+					int frame = chargeStack(ti, group, interval, sampleTimestamp);
+					if (frame >= 0) {
+						stateTime_[state].add(frame, interval);
+						getGroupStateTime(group)[state].add(frame, interval);
+						chargeLock(ti, interval);
 						samplesAcquired = true;
-						break;
 					}
 				}
+				continue;
+			}
+			long cpuTime = cpuTimes[i];
+			if (cpuTime < 0) {
+				// thread terminated in the meantime or cpu time measurement is disabled
+				continue;
+			}
+			long tCPUTime = threadCPUTime_.put(ti.getThreadId(), cpuTime);
+			if (tCPUTime != LongLongTable.NO_VALUE && ti.getThreadState() == State.RUNNABLE) {
+				int group = grouper_.getGroup(ti.getThreadName());
+				if (chargeStack(ti, group, cpuTime - tCPUTime, sampleTimestamp) >= 0) {
+					samplesAcquired = true;
+				}
 			}
-			threadCPUTime.put(ti.getThreadId(), cpuTime);
+		}
+		if (!wallClock_) {
+			// threads which are not part of the dump have terminated
+			threadCPUTime_.evictStale();
 		}
 		if (samplesAcquired) {
 			updateCount_.incrementAndGet();
+			sampledWallTime_.addAndGet(interval);
+		}
+		lastSampleTimestamp_ = sampleTimestamp;
+		lastSampleLatency_ = System.nanoTime() - sampleStart;
+		totalSampleLatency_.addAndGet(lastSampleLatency_);
+		sampleCount_.incrementAndGet();
+	}
+
+	/**
+	 * Charges the given time to the top-most non-filtered frame of the thread's
+	 * stack and adds the stack to the call tree.
+	 *
+	 * @param ti
+	 * @param group     the thread group of the thread
+	 * @param time
+	 * @param timestamp the time of the sample
+	 * @return the frame which has been charged, -1 if the stack did not contain
+	 *         any non-filtered frame or the thread is sleeping
+	 * @throws IOException
+	 */
+	private int chargeStack(ThreadInfo ti, int group, long time, long timestamp) throws IOException {
+		int depth = 0;
+		for (StackTraceElement stElement : ti.getStackTrace()) {
+			int frame = frames_.intern(stElement.getClassName(), stElement.getMethodName());
+			int flags = getFrameFlags(frame, stElement);
+			if (depth == 0 && (flags & FRAME_SLEEPING) != 0) {
+				break;
+			}
+			if ((flags & FRAME_FILTERED) != 0) {
+				continue;
+			}
+			if (depth == stackFrames_.length) {
+				stackFrames_ = Arrays.copyOf(stackFrames_, depth * 2);
+			}
+			stackFrames_[depth++] = frame;
+		}
+		if (depth == 0) {
+			return -1;
+		}
+		selfTime_.add(stackFrames_[0], time);
+		timeline_.add(stackFrames_[0], time, timestamp);
+		getGroupTime(group).add(stackFrames_[0], time);
+		totalThreadCPUTime_.addAndGet(time);
+		callTree_.add(stackFrames_, depth, time);
+		if (collapsedStackWriter_ != null) {
+			collapsedStackWriter_.write(frames_, stackFrames_, depth, time);
+		}
+		return stackFrames_[0];
+	}
+
+	private FrameCounters getGroupTime(int group) {
+		synchronized (groupTime_) {
+			while (groupTime_.size() <= group) {
+				groupTime_.add(new FrameCounters(frames_));
+			}
+			return groupTime_.get(group);
+		}
+	}
+
+	private FrameCounters[] getGroupStateTime(int group) {
+		synchronized (groupStateTime_) {
+			while (groupStateTime_.size() <= group) {
+				FrameCounters[] stateTime = new FrameCounters[WAIT_STATES.length];
+				for (int i = 0; i < stateTime.length; i++) {
+					stateTime[i] = new FrameCounters(frames_);
+				}
+				groupStateTime_.add(stateTime);
+			}
+			return groupStateTime_.get(group);
+		}
+	}
+
+	/**
+	 * Charges the given time to the lock or monitor the thread is waiting on
+	 *
+	 * @param ti
+	 * @param time
+	 */
+	private void chargeLock(ThreadInfo ti, long time) {
+		LockInfo lock = ti.getLockInfo();
+		if (lock == null) {
+			return;
+		}
+		String identity = Integer.toHexString(lock.getIdentityHashCode());
+		int id = locks_.find(lock.getClassName(), identity);
+		if (id < 0) {
+			// known locks keep accumulating, only new ones are aggregated once the table is full
+			id = locks_.intern(lock.getClassName(), locks_.size() < MAX_LOCKS ? identity : "*");
+		}
+		lockTime_.add(id, time);
+	}
+
+	/**
+	 * @param state
+	 * @return the index of the given state in stateTime_, -1 if the thread is
+	 *         not waiting
+	 */
+	private static int getWaitStateIndex(State state) {
+		for (int i = 0; i < WAIT_STATES.length; i++) {
+			if (WAIT_STATES[i] == state) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return true if this sampler measures the wall-clock time of waiting threads
+	 *         instead of cpu time
+	 */
+	public boolean isWallClock() {
+		return wallClock_;
+	}
+
+	/**
+	 * Returns the wall-clock time the given method spent in the given state
+	 * (exclusive time, only available in wall-clock mode)
+	 *
+	 * @param state one of BLOCKED, WAITING or TIMED_WAITING
+	 * @param stats
+	 * @return the time in nanoseconds
+	 */
+	public long getStateTime(State state, MethodStats stats) {
+		int index = getWaitStateIndex(state);
+		if (!wallClock_ || index < 0) {
+			return 0;
+		}
+		// the render thread must not insert frames, an unknown one was never charged
+		int frame = frames_.find(stats.getClassName(), stats.getMethodName());
+		return frame < 0 ? 0 : stateTime_[index].get(frame);
+	}
+
+	/**
+	 * Returns the wall-clock time the given method spent in the given state
+	 * within the given thread group (exclusive time, only available in
+	 * wall-clock mode)
+	 *
+	 * @param group the id of the group, see {@link #getThreadGrouper()}
+	 * @param state one of BLOCKED, WAITING or TIMED_WAITING
+	 * @param stats
+	 * @return the time in nanoseconds
+	 */
+	public long getStateTime(int group, State state, MethodStats stats) {
+		int index = getWaitStateIndex(state);
+		if (!wallClock_ || index < 0) {
+			return 0;
+		}
+		int frame = frames_.find(stats.getClassName(), stats.getMethodName());
+		return frame < 0 ? 0 : getGroupStateTime(group)[index].get(frame);
+	}
+
+	/**
+	 * Returns the locks and monitors with the highest wall-clock time threads
+	 * waited on them (only available in wall-clock mode). The class name of the
+	 * returned stats denotes the lock class, the method name its identity hash
+	 * code.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public List<MethodStats> getTopLocks(int limit) {
+		return lockTime_.getTop(limit);
+	}
+
+	/**
+	 * Fetches the cpu times of the given threads, using a single remote call if
+	 * the monitored jvm supports it. Otherwise, falls back to one call per
+	 * thread.
+	 *
+	 * @param threadInfos
+	 * @return the cpu times in nanoseconds, in the order of threadInfos, -1 if
+	 *         not available
+	 */
+	private long[] getThreadCpuTimes(ThreadInfo[] threadInfos) {
+		long[] threadIds = new long[threadInfos.length];
+		for (int i = 0; i < threadInfos.length; i++) {
+			threadIds[i] = threadInfos[i].getThreadId();
+		}
+		if (bulkThreadMxBean_ != null) {
+			try {
+				return bulkThreadMxBean_.getThreadCpuTime(threadIds);
+			} catch (RuntimeException e) {
+				Logger.getLogger("jvmtop").log(Level.FINE,
+						"bulk thread cpu time retrieval not supported, falling back", e);
+				bulkThreadMxBean_ = null;
+			}
+		}
+		long[] cpuTimes = new long[threadIds.length];
+		for (int i = 0; i < threadIds.length; i++) {
+			cpuTimes[i] = threadMxBean_.getThreadCpuTime(threadIds[i]);
+		}
+		return cpuTimes;
+	}
+
+	/**
+	 * @return true if the cpu times of all threads are fetched using one remote
+	 *         call per sample
+	 */
+	public boolean isBatchedSampling() {
+		return bulkThreadMxBean_ != null;
+	}
+
+	/**
+	 * @return the duration of the last sample in nanoseconds
+	 */
+	public long getLastSampleLatency() {
+		return lastSampleLatency_;
+	}
+
+	/**
+	 * @return the average duration of all samples in nanoseconds
+	 */
+	public long getAverageSampleLatency() {
+		long samples = sampleCount_.get();
+		if (samples == 0) {
+			return 0;
 		}
+		return totalSampleLatency_.get() / samples;
 	}
 
 	public Long getUpdateCount() {
 		return updateCount_.get();
 	}
 
+	/**
+	 * Returns the wall-clock time covered by all samples which acquired data,
+	 * measured between the actual sample timestamps.
+	 *
+	 * @return the sampled time in nanoseconds
+	 */
+	public long getSampledWallTime() {
+		return sampledWallTime_.get();
+	}
+
 	private boolean isReallySleeping(StackTraceElement se) {
 		return se.getClassName().equals("sun.nio.ch.EPollArrayWrapper") && se.getMethodName().equals("epollWait");
 	}
 
 	public boolean isFiltered(StackTraceElement se) {
-		for (String filteredPackage : filter) {
-			if (se.getClassName().startsWith(filteredPackage)) {
-				return true;
+		return filter_.isFiltered(se.getClassName());
+	}
+
+	/**
+	 * Returns the filter decisions of the given frame, evaluating the filter only
+	 * once per frame.
+	 *
+	 * @param frame the interned frame
+	 * @param se    the stack trace element of the frame
+	 * @return a combination of the FRAME_* flags
+	 */
+	private int getFrameFlags(int frame, StackTraceElement se) {
+		if (frame >= frameFlags_.length) {
+			frameFlags_ = Arrays.copyOf(frameFlags_, Math.max(frame + 1, frameFlags_.length * 2));
+		}
+		byte flags = frameFlags_[frame];
+		if (flags == 0) {
+			flags = FRAME_KNOWN;
+			if (isFiltered(se)) {
+				flags |= FRAME_FILTERED;
+			}
+			if (isReallySleeping(se)) {
+				flags |= FRAME_SLEEPING;
 			}
+			frameFlags_[frame] = flags;
 		}
-		return false;
+		return flags;
 	}
 }
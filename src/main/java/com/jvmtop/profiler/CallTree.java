@@ -0,0 +1,252 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Aggregates sampled stack traces into a call tree (a trie of frames, rooted at
+ * the thread entry points). Every node stores the time spent in the frame
+ * itself (self) and the time spent in the frame including its callees (total).
+ * <p>
+ * Frames are interned by a {@link FrameInterner} and nodes are kept in
+ * parallel primitive arrays. The number of nodes is capped, paths which do not
+ * fit anymore are charged to their deepest existing node.
+ *
+ * @author paru
+ */
+public class CallTree {
+	private static final int ROOT = 0;
+	private static final int NO_NODE = -1;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int DEFAULT_MAX_NODES = 1 << 18;
+
+	private final int maxNodes_;
+
+	private final FrameInterner interner_;
+
+	// node storage, indexed by node id
+	private int nodeCount_ = 0;
+	private int[] frame_;
+	private int[] firstChild_;
+	private int[] nextSibling_;
+	private long[] self_;
+	private long[] total_;
+
+	/**
+	 * @param interner the interner of the frames which will be added
+	 */
+	public CallTree(FrameInterner interner) {
+		this(interner, DEFAULT_MAX_NODES);
+	}
+
+	/**
+	 * @param interner the interner of the frames which will be added
+	 * @param maxNodes the maximum number of nodes this tree will allocate
+	 */
+	public CallTree(FrameInterner interner, int maxNodes) {
+		super();
+		interner_ = interner;
+		maxNodes_ = maxNodes;
+		int capacity = Math.min(INITIAL_CAPACITY, maxNodes);
+		frame_ = new int[capacity];
+		firstChild_ = new int[capacity];
+		nextSibling_ = new int[capacity];
+		self_ = new long[capacity];
+		total_ = new long[capacity];
+		newNode(NO_NODE);
+	}
+
+	/**
+	 * Adds a sampled stack to the tree.
+	 *
+	 * @param frames the interned frames, the top of the stack (callee) first
+	 * @param depth  the number of valid entries in frames
+	 * @param time   the time to be charged to the stack
+	 */
+	public synchronized void add(int[] frames, int depth, long time) {
+		int node = ROOT;
+		total_[ROOT] += time;
+		for (int i = depth - 1; i >= 0; i--) {
+			int child = findOrCreateChild(node, frames[i]);
+			if (child == NO_NODE) {
+				break;
+			}
+			node = child;
+			total_[node] += time;
+		}
+		self_[node] += time;
+	}
+
+	/**
+	 * Returns the methods ordered by their inclusive time, that is the time spent
+	 * in the method or one of its callees. Recursive invocations are only counted
+	 * once per stack.
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public synchronized List<MethodStats> getTopInclusive(int limit) {
+		long[] inclusive = new long[interner_.size()];
+		int[] onPath = new int[interner_.size()];
+
+		// iterative depth-first traversal, a node is pushed once on entry and
+		// once (encoded as negative value) on exit
+		int[] stack = new int[64];
+		int sp = 0;
+		for (int child = firstChild_[ROOT]; child != NO_NODE; child = nextSibling_[child]) {
+			stack = push(stack, sp++, child);
+		}
+		while (sp > 0) {
+			int entry = stack[--sp];
+			if (entry < 0) {
+				onPath[frame_[-entry - 1]]--;
+				continue;
+			}
+			int frame = frame_[entry];
+			if (onPath[frame] == 0) {
+				inclusive[frame] += total_[entry];
+			}
+			onPath[frame]++;
+			stack = push(stack, sp++, -entry - 1);
+			for (int child = firstChild_[entry]; child != NO_NODE; child = nextSibling_[child]) {
+				stack = push(stack, sp++, child);
+			}
+		}
+
+		List<MethodStats> statList = new ArrayList<MethodStats>();
+		for (int frame = 0; frame < inclusive.length; frame++) {
+			if (inclusive[frame] > 0) {
+				MethodStats stats = new MethodStats(interner_.getClassName(frame), interner_.getMethodName(frame));
+				stats.getHits().set(inclusive[frame]);
+				statList.add(stats);
+			}
+		}
+		Collections.sort(statList);
+		return statList.subList(0, Math.min(limit, statList.size()));
+	}
+
+	/**
+	 * Writes every path of the tree which has self time in collapsed stack format
+	 *
+	 * @param writer
+	 * @throws IOException
+	 */
+	public synchronized void writeCollapsed(CollapsedStackWriter writer) throws IOException {
+		// path holds the frames from the root to the current node, frames the
+		// same path in reversed order as expected by the writer
+		int[] path = new int[64];
+		int[] frames = new int[64];
+		int[] nodes = new int[64];
+		int[] depths = new int[64];
+		int sp = 0;
+		for (int child = firstChild_[ROOT]; child != NO_NODE; child = nextSibling_[child]) {
+			depths = push(depths, sp, 0);
+			nodes = push(nodes, sp++, child);
+		}
+		while (sp > 0) {
+			int node = nodes[--sp];
+			int depth = depths[sp];
+			path = push(path, depth, frame_[node]);
+			if (self_[node] > 0) {
+				if (frames.length < path.length) {
+					frames = new int[path.length];
+				}
+				for (int i = 0; i <= depth; i++) {
+					frames[i] = path[depth - i];
+				}
+				writer.write(interner_, frames, depth + 1, self_[node]);
+			}
+			for (int child = firstChild_[node]; child != NO_NODE; child = nextSibling_[child]) {
+				depths = push(depths, sp, depth + 1);
+				nodes = push(nodes, sp++, child);
+			}
+		}
+	}
+
+	public FrameInterner getFrameInterner() {
+		return interner_;
+	}
+
+	/**
+	 * @return the total time of all added stacks
+	 */
+	public synchronized long getTotal() {
+		return total_[ROOT];
+	}
+
+	/**
+	 * @return the number of allocated nodes, including the root
+	 */
+	public synchronized int getNodeCount() {
+		return nodeCount_;
+	}
+
+	private int findOrCreateChild(int parent, int frame) {
+		int last = NO_NODE;
+		for (int child = firstChild_[parent]; child != NO_NODE; child = nextSibling_[child]) {
+			if (frame_[child] == frame) {
+				return child;
+			}
+			last = child;
+		}
+		int child = newNode(frame);
+		if (child != NO_NODE) {
+			if (last == NO_NODE) {
+				firstChild_[parent] = child;
+			} else {
+				nextSibling_[last] = child;
+			}
+		}
+		return child;
+	}
+
+	private int newNode(int frame) {
+		if (nodeCount_ == frame_.length) {
+			if (nodeCount_ >= maxNodes_) {
+				return NO_NODE;
+			}
+			int capacity = (int) Math.min((long) nodeCount_ * 2, maxNodes_);
+			frame_ = Arrays.copyOf(frame_, capacity);
+			firstChild_ = Arrays.copyOf(firstChild_, capacity);
+			nextSibling_ = Arrays.copyOf(nextSibling_, capacity);
+			self_ = Arrays.copyOf(self_, capacity);
+			total_ = Arrays.copyOf(total_, capacity);
+		}
+		int node = nodeCount_++;
+		frame_[node] = frame;
+		firstChild_[node] = NO_NODE;
+		nextSibling_[node] = NO_NODE;
+		return node;
+	}
+
+	private static int[] push(int[] stack, int sp, int value) {
+		if (sp == stack.length) {
+			stack = Arrays.copyOf(stack, stack.length * 2);
+		}
+		stack[sp] = value;
+		return stack;
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes sampled stacks in the "collapsed stack" format used by flame graph
+ * tools, one stack per line:
+ *
+ * <pre>
+ * rootFrame;callee;...;topFrame count
+ * </pre>
+ *
+ * The count is the cpu time of the stack in microseconds.
+ * <p>
+ * Lines are encoded into a fixed-size buffer which is written to the file
+ * whenever it is full, so no samples are retained in memory.
+ *
+ * @author paru
+ */
+public class CollapsedStackWriter implements Closeable {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel_;
+	private final ByteBuffer buffer_ = ByteBuffer.allocate(BUFFER_SIZE);
+	private final CharsetEncoder encoder_ = StandardCharsets.UTF_8.newEncoder();
+	private final StringBuilder line_ = new StringBuilder(1024);
+	private boolean closed_ = false;
+
+	/**
+	 * Creates (or truncates) the given file
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	public CollapsedStackWriter(File file) throws IOException {
+		channel_ = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Writes a single stack.
+	 *
+	 * @param interner the interner of the frames
+	 * @param frames   the interned frames, the top of the stack (callee) first
+	 * @param depth    the number of valid entries in frames
+	 * @param time     the cpu time of the stack in nanoseconds
+	 * @throws IOException
+	 */
+	public synchronized void write(FrameInterner interner, int[] frames, int depth, long time) throws IOException {
+		long count = time / 1000;
+		if (closed_ || depth == 0 || count <= 0) {
+			return;
+		}
+		line_.setLength(0);
+		for (int i = depth - 1; i >= 0; i--) {
+			line_.append(interner.getClassName(frames[i])).append('.').append(interner.getMethodName(frames[i]));
+			if (i > 0) {
+				line_.append(';');
+			}
+		}
+		line_.append(' ').append(count).append('\n');
+		encode(CharBuffer.wrap(line_));
+	}
+
+	/**
+	 * Writes all buffered lines to the file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		buffer_.flip();
+		while (buffer_.hasRemaining()) {
+			channel_.write(buffer_);
+		}
+		buffer_.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed_) {
+			return;
+		}
+		try {
+			flush();
+		} finally {
+			closed_ = true;
+			channel_.close();
+		}
+	}
+
+	private void encode(CharBuffer chars) throws IOException {
+		while (true) {
+			CoderResult result = encoder_.encode(chars, buffer_, true);
+			if (result.isOverflow()) {
+				flush();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		encoder_.reset();
+	}
+}
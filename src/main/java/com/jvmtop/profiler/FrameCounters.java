@@ -0,0 +1,87 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accumulates a counter per interned frame, indexed by the frame id of a
+ * {@link FrameInterner}.
+ *
+ * @author paru
+ */
+public class FrameCounters {
+	private final FrameInterner interner_;
+	private long[] counts_ = new long[1024];
+	private long total_ = 0;
+
+	public FrameCounters(FrameInterner interner) {
+		super();
+		interner_ = interner;
+	}
+
+	/**
+	 * Adds the given value to the counter of the given frame
+	 *
+	 * @param frame
+	 * @param value
+	 */
+	public synchronized void add(int frame, long value) {
+		if (frame >= counts_.length) {
+			counts_ = Arrays.copyOf(counts_, Math.max(frame + 1, counts_.length * 2));
+		}
+		counts_[frame] += value;
+		total_ += value;
+	}
+
+	public synchronized long get(int frame) {
+		return frame < counts_.length ? counts_[frame] : 0;
+	}
+
+	/**
+	 * @return the sum of all counters
+	 */
+	public synchronized long getTotal() {
+		return total_;
+	}
+
+	/**
+	 * Returns the frames with the highest counters
+	 *
+	 * @param limit
+	 * @return
+	 */
+	public synchronized List<MethodStats> getTop(int limit) {
+		List<MethodStats> statList = new ArrayList<MethodStats>();
+		for (int frame = 0; frame < counts_.length; frame++) {
+			if (counts_[frame] > 0) {
+				MethodStats stats = new MethodStats(interner_.getClassName(frame), interner_.getMethodName(frame));
+				stats.getHits().set(counts_[frame]);
+				statList.add(stats);
+			}
+		}
+		Collections.sort(statList);
+		return statList.subList(0, Math.min(limit, statList.size()));
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * Maps frames (class name, method name) to dense int ids, starting at 0.
+ * <p>
+ * Uses an open-addressing hash table, looking up an already known frame does
+ * not allocate.
+ *
+ * @author paru
+ */
+public class FrameInterner {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private String[] classNames_ = new String[INITIAL_CAPACITY];
+	private String[] methodNames_ = new String[INITIAL_CAPACITY];
+	private int[] hashes_ = new int[INITIAL_CAPACITY];
+	private int size_ = 0;
+
+	// slots contain frame id + 1, 0 marks an empty slot
+	private int[] table_ = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Returns the id of the given frame, registering it if it is not yet known.
+	 *
+	 * @param className
+	 * @param methodName
+	 * @return
+	 */
+	public synchronized int intern(String className, String methodName) {
+		int hash = hash(className, methodName);
+		int mask = table_.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = table_[slot];
+			if (entry == 0) {
+				return add(slot, hash, className, methodName);
+			}
+			int id = entry - 1;
+			if (hashes_[id] == hash && classNames_[id].equals(className) && methodNames_[id].equals(methodName)) {
+				return id;
+			}
+		}
+	}
+
+	/**
+	 * Returns the id of the given frame without registering it.
+	 *
+	 * @param className
+	 * @param methodName
+	 * @return the id of the frame, -1 if it is not known
+	 */
+	public synchronized int find(String className, String methodName) {
+		int hash = hash(className, methodName);
+		int mask = table_.length - 1;
+		for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+			int entry = table_[slot];
+			if (entry == 0) {
+				return -1;
+			}
+			int id = entry - 1;
+			if (hashes_[id] == hash && classNames_[id].equals(className) && methodNames_[id].equals(methodName)) {
+				return id;
+			}
+		}
+	}
+
+	public synchronized String getClassName(int id) {
+		return classNames_[id];
+	}
+
+	public synchronized String getMethodName(int id) {
+		return methodNames_[id];
+	}
+
+	/**
+	 * @return the number of interned frames, all ids are lower than this value
+	 */
+	public synchronized int size() {
+		return size_;
+	}
+
+	private int add(int slot, int hash, String className, String methodName) {
+		int id = size_++;
+		if (id == classNames_.length) {
+			classNames_ = Arrays.copyOf(classNames_, id * 2);
+			methodNames_ = Arrays.copyOf(methodNames_, id * 2);
+			hashes_ = Arrays.copyOf(hashes_, id * 2);
+		}
+		classNames_[id] = className;
+		methodNames_[id] = methodName;
+		hashes_[id] = hash;
+		table_[slot] = id + 1;
+		// keep the load factor below 0.5
+		if (size_ * 2 > table_.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		int[] table = new int[table_.length * 2];
+		int mask = table.length - 1;
+		for (int id = 0; id < size_; id++) {
+			int slot = hashes_[id] & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = id + 1;
+		}
+		table_ = table;
+	}
+
+	private static int hash(String className, String methodName) {
+		int h = className.hashCode() * 31 + methodName.hashCode();
+		// spread the bits, as only the lower ones are used for addressing
+		return h ^ (h >>> 16);
+	}
+}
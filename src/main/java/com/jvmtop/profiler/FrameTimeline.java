@@ -0,0 +1,230 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Accumulates counters per interned frame in a ring of fixed-length time
+ * buckets, which allows to rank frames by the time of the last N seconds
+ * (sliding window) or by exponentially decayed time.
+ * <p>
+ * Every bucket only holds the frames sampled during its interval, a query
+ * merges the buckets and thus costs O(buckets), independent of the number of
+ * samples. Buckets older than the ring are overwritten.
+ *
+ * @author paru
+ */
+public class FrameTimeline {
+
+	/**
+	 * Sparse frame counters of a single interval
+	 */
+	private static final class Bucket {
+		private long epoch_ = NO_EPOCH;
+		private int size_ = 0;
+		private int[] frames_ = new int[64];
+		private long[] values_ = new long[64];
+		// slots contain index + 1, 0 marks an empty slot
+		private int[] table_ = new int[128];
+
+		private void add(int frame, long value) {
+			int mask = table_.length - 1;
+			int slot = slot(frame, mask);
+			for (; table_[slot] != 0; slot = (slot + 1) & mask) {
+				int index = table_[slot] - 1;
+				if (frames_[index] == frame) {
+					values_[index] += value;
+					return;
+				}
+			}
+			if (size_ == frames_.length) {
+				frames_ = Arrays.copyOf(frames_, size_ * 2);
+				values_ = Arrays.copyOf(values_, size_ * 2);
+			}
+			frames_[size_] = frame;
+			values_[size_] = value;
+			table_[slot] = ++size_;
+			if (size_ * 2 > table_.length) {
+				rehash();
+			}
+		}
+
+		private void rehash() {
+			table_ = new int[table_.length * 2];
+			int mask = table_.length - 1;
+			for (int index = 0; index < size_; index++) {
+				int slot = slot(frames_[index], mask);
+				while (table_[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				table_[slot] = index + 1;
+			}
+		}
+
+		private static int slot(int frame, int mask) {
+			int h = frame * 0x9E3779B9;
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		private void reset(long epoch) {
+			epoch_ = epoch;
+			size_ = 0;
+			Arrays.fill(table_, 0);
+		}
+	}
+
+	private static final long NO_EPOCH = Long.MIN_VALUE;
+
+	private final FrameInterner interner_;
+	private final long bucketNanos_;
+	private final Bucket[] buckets_;
+
+	/**
+	 * @param interner    the interner of the frames which will be added
+	 * @param bucketNanos the length of a bucket in nanoseconds
+	 * @param bucketCount the number of buckets, limits the time covered by
+	 *                    queries
+	 */
+	public FrameTimeline(FrameInterner interner, long bucketNanos, int bucketCount) {
+		super();
+		interner_ = interner;
+		bucketNanos_ = bucketNanos;
+		buckets_ = new Bucket[bucketCount];
+		for (int i = 0; i < bucketCount; i++) {
+			buckets_[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Adds the given value to the counter of the given frame
+	 *
+	 * @param frame
+	 * @param value
+	 * @param timestamp the time of the sample, as returned by
+	 *                  {@link System#nanoTime()}
+	 */
+	public synchronized void add(int frame, long value, long timestamp) {
+		long epoch = Math.floorDiv(timestamp, bucketNanos_);
+		Bucket bucket = buckets_[(int) Math.floorMod(epoch, (long) buckets_.length)];
+		if (bucket.epoch_ != epoch) {
+			bucket.reset(epoch);
+		}
+		bucket.add(frame, value);
+	}
+
+	/**
+	 * @return the time covered by the ring in nanoseconds
+	 */
+	public long getHorizon() {
+		return bucketNanos_ * buckets_.length;
+	}
+
+	/**
+	 * Returns the frames with the highest counters within the last
+	 * windowNanos.
+	 *
+	 * @param windowNanos the length of the window, capped at the horizon
+	 * @param limit
+	 * @return
+	 */
+	public List<MethodStats> getTopWindow(long windowNanos, int limit) {
+		return getTop(aggregate(System.nanoTime(), windowNanos, 0), limit);
+	}
+
+	/**
+	 * @param windowNanos the length of the window, capped at the horizon
+	 * @return the sum of all counters within the window
+	 */
+	public long getTotalWindow(long windowNanos) {
+		return sum(aggregate(System.nanoTime(), windowNanos, 0));
+	}
+
+	/**
+	 * Returns the frames with the highest exponentially decayed counters, a
+	 * counter loses half of its weight every halfLifeNanos.
+	 *
+	 * @param halfLifeNanos
+	 * @param limit
+	 * @return
+	 */
+	public List<MethodStats> getTopDecayed(long halfLifeNanos, int limit) {
+		return getTop(aggregate(System.nanoTime(), getHorizon(), halfLifeNanos), limit);
+	}
+
+	/**
+	 * @param halfLifeNanos
+	 * @return the sum of all decayed counters
+	 */
+	public long getTotalDecayed(long halfLifeNanos) {
+		return sum(aggregate(System.nanoTime(), getHorizon(), halfLifeNanos));
+	}
+
+	/**
+	 * Merges the buckets within the window into counters indexed by frame id.
+	 *
+	 * @param halfLifeNanos the half-life of the weight of a bucket, 0 disables
+	 *                      decay
+	 */
+	private synchronized long[] aggregate(long now, long windowNanos, long halfLifeNanos) {
+		long[] counts = new long[interner_.size()];
+		long nowEpoch = Math.floorDiv(now, bucketNanos_);
+		long windowBuckets = Math.min(buckets_.length, (windowNanos + bucketNanos_ - 1) / bucketNanos_);
+		for (Bucket bucket : buckets_) {
+			long age = nowEpoch - bucket.epoch_;
+			if (bucket.epoch_ == NO_EPOCH || age < 0 || age >= windowBuckets) {
+				continue;
+			}
+			double weight = halfLifeNanos > 0 ? Math.pow(0.5, (double) age * bucketNanos_ / halfLifeNanos) : 1;
+			for (int i = 0; i < bucket.size_; i++) {
+				int frame = bucket.frames_[i];
+				if (frame < counts.length) {
+					counts[frame] += (long) (bucket.values_[i] * weight);
+				}
+			}
+		}
+		return counts;
+	}
+
+	private List<MethodStats> getTop(long[] counts, int limit) {
+		List<MethodStats> statList = new ArrayList<MethodStats>();
+		for (int frame = 0; frame < counts.length; frame++) {
+			if (counts[frame] > 0) {
+				MethodStats stats = new MethodStats(interner_.getClassName(frame), interner_.getMethodName(frame));
+				stats.getHits().set(counts[frame]);
+				statList.add(stats);
+			}
+		}
+		Collections.sort(statList);
+		return statList.subList(0, Math.min(limit, statList.size()));
+	}
+
+	private static long sum(long[] counts) {
+		long sum = 0;
+		for (long count : counts) {
+			sum += count;
+		}
+		return sum;
+	}
+}
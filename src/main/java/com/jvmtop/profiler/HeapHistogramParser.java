@@ -0,0 +1,268 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Streaming parser for class histograms as printed by the attach mechanism
+ * ({@code jmap -histo}), lines of the form
+ *
+ * <pre>
+ *    1:         12345         678901  [B (java.base@11)
+ * </pre>
+ *
+ * The stream is scanned byte by byte, the rows are stored in primitive columns
+ * (class id, instance count, bytes) which are reused by subsequent calls to
+ * {@link #parse(InputStream)}. Class names are interned to ids which stay
+ * stable across parses, a class name is only decoded into a String when it is
+ * seen for the first time.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author paru
+ */
+public class HeapHistogramParser {
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private byte[] buffer_ = new byte[BUFFER_SIZE];
+
+	// rows of the last parsed histogram
+	private int rows_ = 0;
+	private int[] classIds_ = new int[INITIAL_CAPACITY];
+	private long[] counts_ = new long[INITIAL_CAPACITY];
+	private long[] bytes_ = new long[INITIAL_CAPACITY];
+
+	// interned class names, indexed by class id
+	private int classCount_ = 0;
+	private byte[][] nameBytes_ = new byte[INITIAL_CAPACITY][];
+	private String[] names_ = new String[INITIAL_CAPACITY];
+	private int[] hashes_ = new int[INITIAL_CAPACITY];
+	// slots contain class id + 1, 0 marks an empty slot
+	private int[] table_ = new int[INITIAL_CAPACITY * 2];
+
+	/**
+	 * Parses the given histogram, replacing the rows of the previous one. The
+	 * stream is read until its end but not closed.
+	 *
+	 * @param in
+	 * @return the number of rows
+	 * @throws IOException
+	 */
+	public int parse(InputStream in) throws IOException {
+		rows_ = 0;
+		int length = 0;
+		int read;
+		while ((read = in.read(buffer_, length, buffer_.length - length)) != -1) {
+			length += read;
+			int lineStart = 0;
+			for (int i = 0; i < length; i++) {
+				if (buffer_[i] == '\n') {
+					parseLine(lineStart, i);
+					lineStart = i + 1;
+				}
+			}
+			// keep the incomplete last line for the next read
+			length -= lineStart;
+			System.arraycopy(buffer_, lineStart, buffer_, 0, length);
+			if (length == buffer_.length) {
+				buffer_ = Arrays.copyOf(buffer_, buffer_.length * 2);
+			}
+		}
+		if (length > 0) {
+			parseLine(0, length);
+		}
+		return rows_;
+	}
+
+	/**
+	 * @return the number of rows of the last parsed histogram
+	 */
+	public int getRowCount() {
+		return rows_;
+	}
+
+	public int getClassId(int row) {
+		return classIds_[row];
+	}
+
+	public long getCount(int row) {
+		return counts_[row];
+	}
+
+	public long getBytes(int row) {
+		return bytes_[row];
+	}
+
+	/**
+	 * Selects the rows with the most bytes, using a bounded min-heap of row
+	 * indices: O(n log k) time, O(k) space.
+	 *
+	 * @param limit the maximum number of rows to select
+	 * @return the selected row indices, ordered by decreasing bytes
+	 */
+	public int[] selectTopRows(int limit) {
+		return TopSelector.select(bytes_, rows_, limit);
+	}
+
+	/**
+	 * @param classId
+	 * @return the class name as printed in the histogram
+	 */
+	public String getClassName(int classId) {
+		return names_[classId];
+	}
+
+	/**
+	 * @return the number of interned class names, all ids are lower than this
+	 *         value
+	 */
+	public int getClassCount() {
+		return classCount_;
+	}
+
+	private void parseLine(int start, int end) {
+		byte[] b = buffer_;
+		while (end > start && (b[end - 1] == '\r' || b[end - 1] == ' ')) {
+			end--;
+		}
+		// row numbers are right-aligned, wide ones are not preceded by spaces
+		int i = skipSpaces(b, start, end);
+		// the row number, header and total lines do not have one
+		int j = skipDigits(b, i, end);
+		if (j == i || j == end || b[j] != ':') {
+			return;
+		}
+		i = skipSpaces(b, j + 1, end);
+		j = skipDigits(b, i, end);
+		if (j == i) {
+			return;
+		}
+		long count = parseLong(b, i, j);
+		i = skipSpaces(b, j, end);
+		if (i == j) {
+			return;
+		}
+		j = skipDigits(b, i, end);
+		if (j == i) {
+			return;
+		}
+		long bytes = parseLong(b, i, j);
+		i = skipSpaces(b, j, end);
+		if (i == j || i == end) {
+			return;
+		}
+		addRow(intern(b, i, end), count, bytes);
+	}
+
+	private void addRow(int classId, long count, long bytes) {
+		if (rows_ == classIds_.length) {
+			classIds_ = Arrays.copyOf(classIds_, rows_ * 2);
+			counts_ = Arrays.copyOf(counts_, rows_ * 2);
+			bytes_ = Arrays.copyOf(bytes_, rows_ * 2);
+		}
+		classIds_[rows_] = classId;
+		counts_[rows_] = count;
+		bytes_[rows_] = bytes;
+		rows_++;
+	}
+
+	private int intern(byte[] b, int start, int end) {
+		int hash = 1;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + b[i];
+		}
+		hash ^= hash >>> 16;
+		int mask = table_.length - 1;
+		int slot = hash & mask;
+		for (; table_[slot] != 0; slot = (slot + 1) & mask) {
+			int id = table_[slot] - 1;
+			if (hashes_[id] == hash && equals(nameBytes_[id], b, start, end)) {
+				return id;
+			}
+		}
+		int id = classCount_++;
+		if (id == names_.length) {
+			nameBytes_ = Arrays.copyOf(nameBytes_, id * 2);
+			names_ = Arrays.copyOf(names_, id * 2);
+			hashes_ = Arrays.copyOf(hashes_, id * 2);
+		}
+		nameBytes_[id] = Arrays.copyOfRange(b, start, end);
+		names_[id] = new String(b, start, end - start, StandardCharsets.UTF_8);
+		hashes_[id] = hash;
+		table_[slot] = id + 1;
+		// keep the load factor below 0.5
+		if (classCount_ * 2 > table_.length) {
+			rehash();
+		}
+		return id;
+	}
+
+	private void rehash() {
+		table_ = new int[table_.length * 2];
+		int mask = table_.length - 1;
+		for (int id = 0; id < classCount_; id++) {
+			int slot = hashes_[id] & mask;
+			while (table_[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table_[slot] = id + 1;
+		}
+	}
+
+	private static boolean equals(byte[] name, byte[] b, int start, int end) {
+		if (name.length != end - start) {
+			return false;
+		}
+		for (int i = 0; i < name.length; i++) {
+			if (name[i] != b[start + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int skipSpaces(byte[] b, int i, int end) {
+		while (i < end && (b[i] == ' ' || b[i] == '\t')) {
+			i++;
+		}
+		return i;
+	}
+
+	private static int skipDigits(byte[] b, int i, int end) {
+		while (i < end && b[i] >= '0' && b[i] <= '9') {
+			i++;
+		}
+		return i;
+	}
+
+	private static long parseLong(byte[] b, int start, int end) {
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			value = value * 10 + (b[i] - '0');
+		}
+		return value;
+	}
+}
@@ -0,0 +1,224 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+
+/**
+ * A ring of the most recent heap histograms, stored as compact snapshots of
+ * the instance counts and bytes per interned class id (see
+ * {@link HeapHistogramParser}).
+ * <p>
+ * Based on the snapshots, it computes the growth rate of a class between the
+ * oldest and the newest snapshot and a leak suspect score: the slope of a
+ * linear regression of the bytes over time, weighted by its coefficient of
+ * determination, so that classes which grow steadily score higher than ones
+ * which merely fluctuate.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author paru
+ */
+public class HeapHistory {
+
+	/**
+	 * The minimum number of snapshots for a leak suspect score
+	 */
+	public static final int MIN_REGRESSION_SNAPSHOTS = 3;
+
+	private final long[] timestamps_;
+	private final long[][] counts_;
+	private final long[][] bytes_;
+	// index of the newest snapshot
+	private int newest_ = -1;
+	private int size_ = 0;
+
+	/**
+	 * @param capacity the number of snapshots to keep, at least 2
+	 */
+	public HeapHistory(int capacity) {
+		super();
+		if (capacity < 2) {
+			throw new IllegalArgumentException("At least 2 snapshots are required");
+		}
+		timestamps_ = new long[capacity];
+		counts_ = new long[capacity][];
+		bytes_ = new long[capacity][];
+		for (int i = 0; i < capacity; i++) {
+			counts_[i] = new long[0];
+			bytes_[i] = new long[0];
+		}
+	}
+
+	/**
+	 * Records the last parsed histogram as newest snapshot, replacing the oldest
+	 * one if the ring is full. Rows of the same class (loaded by different class
+	 * loaders) are summed up.
+	 *
+	 * @param timestamp the time of the histogram, as returned by
+	 *                  {@link System#nanoTime()}
+	 * @param parser
+	 */
+	public void record(long timestamp, HeapHistogramParser parser) {
+		newest_ = (newest_ + 1) % timestamps_.length;
+		size_ = Math.min(size_ + 1, timestamps_.length);
+		int classCount = parser.getClassCount();
+		long[] counts = counts_[newest_];
+		long[] bytes = bytes_[newest_];
+		if (counts.length < classCount) {
+			counts = new long[classCount + classCount / 2];
+			bytes = new long[counts.length];
+			counts_[newest_] = counts;
+			bytes_[newest_] = bytes;
+		} else {
+			Arrays.fill(counts, 0);
+			Arrays.fill(bytes, 0);
+		}
+		for (int row = 0; row < parser.getRowCount(); row++) {
+			int classId = parser.getClassId(row);
+			counts[classId] += parser.getCount(row);
+			bytes[classId] += parser.getBytes(row);
+		}
+		timestamps_[newest_] = timestamp;
+	}
+
+	/**
+	 * @return the number of recorded snapshots
+	 */
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * @param age     0 denotes the newest snapshot, 1 the one before...
+	 * @param classId
+	 * @return the number of instances, 0 if the class was not present
+	 */
+	public long getCount(int age, int classId) {
+		long[] counts = counts_[indexOf(age)];
+		return classId < counts.length ? counts[classId] : 0;
+	}
+
+	/**
+	 * @param age     0 denotes the newest snapshot, 1 the one before...
+	 * @param classId
+	 * @return the number of bytes, 0 if the class was not present
+	 */
+	public long getBytes(int age, int classId) {
+		long[] bytes = bytes_[indexOf(age)];
+		return classId < bytes.length ? bytes[classId] : 0;
+	}
+
+	/**
+	 * @param classId
+	 * @return the bytes per second the class grew from the oldest to the newest
+	 *         snapshot
+	 */
+	public double getBytesRate(int classId) {
+		return rate(bytes_, classId);
+	}
+
+	/**
+	 * @param classId
+	 * @return the instances per second the class grew from the oldest to the
+	 *         newest snapshot
+	 */
+	public double getCountRate(int classId) {
+		return rate(counts_, classId);
+	}
+
+	/**
+	 * Returns the slope of the linear regression of the bytes of the given class
+	 * over time (in bytes per second), weighted by its coefficient of
+	 * determination (r&sup2;).
+	 *
+	 * @param classId
+	 * @return the score, 0 if the class does not grow or less than
+	 *         {@link #MIN_REGRESSION_SNAPSHOTS} snapshots are recorded
+	 */
+	public double getLeakScore(int classId) {
+		if (size_ < MIN_REGRESSION_SNAPSHOTS) {
+			return 0;
+		}
+		long origin = timestamps_[indexOf(size_ - 1)];
+		double meanX = 0;
+		double meanY = 0;
+		for (int age = 0; age < size_; age++) {
+			meanX += (timestamps_[indexOf(age)] - origin) / 1e9;
+			meanY += getBytes(age, classId);
+		}
+		meanX /= size_;
+		meanY /= size_;
+		double sxx = 0;
+		double sxy = 0;
+		double syy = 0;
+		for (int age = 0; age < size_; age++) {
+			double dx = (timestamps_[indexOf(age)] - origin) / 1e9 - meanX;
+			double dy = getBytes(age, classId) - meanY;
+			sxx += dx * dx;
+			sxy += dx * dy;
+			syy += dy * dy;
+		}
+		if (sxx == 0 || syy == 0 || sxy <= 0) {
+			return 0;
+		}
+		double slope = sxy / sxx;
+		double r2 = sxy * sxy / (sxx * syy);
+		return slope * r2;
+	}
+
+	/**
+	 * Selects the classes with the highest growth rate in bytes
+	 *
+	 * @param classCount the number of interned classes
+	 * @param limit
+	 * @return the selected class ids, ordered by decreasing growth rate
+	 */
+	public int[] selectTopGrowth(int classCount, int limit) {
+		long[] rates = new long[classCount];
+		for (int classId = 0; classId < classCount; classId++) {
+			rates[classId] = (long) getBytesRate(classId);
+		}
+		return TopSelector.select(rates, classCount, limit);
+	}
+
+	private double rate(long[][] values, int classId) {
+		if (size_ < 2) {
+			return 0;
+		}
+		int newest = indexOf(0);
+		int oldest = indexOf(size_ - 1);
+		double seconds = (timestamps_[newest] - timestamps_[oldest]) / 1e9;
+		if (seconds <= 0) {
+			return 0;
+		}
+		long newestValue = classId < values[newest].length ? values[newest][classId] : 0;
+		long oldestValue = classId < values[oldest].length ? values[oldest][classId] : 0;
+		return (newestValue - oldestValue) / seconds;
+	}
+
+	private int indexOf(int age) {
+		if (age < 0 || age >= size_) {
+			throw new IndexOutOfBoundsException("No snapshot of age " + age);
+		}
+		return Math.floorMod(newest_ - age, timestamps_.length);
+	}
+}
@@ -7,11 +7,10 @@ import sun.tools.attach.HotSpotVirtualMachine;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A sampler for the heap histograms
@@ -22,9 +21,46 @@ public class HeapSampler {
 	public static final Map<Long, String> binaryPrefixes_IEC;
 	public static final long _1KB = 1024L;
 	public static final Map<Character, String> jniTypeSignatureMap;
-	private static final Pattern HIST_PATTERN = Pattern.compile("\\s+(\\d+):{1}\\s+(\\d+)\\s+(\\d+)\\s+(.+)");
+	/**
+	 * The default number of recent histograms kept to compute growth rates
+	 */
+	public static final int DEFAULT_HISTORY_SIZE = 10;
+
+	/**
+	 * Selects the objects a histogram covers
+	 */
+	public enum HistogramMode {
+		/**
+		 * all objects, including unreachable ones
+		 */
+		ALL("-all"),
+		/**
+		 * reachable objects only, which forces a full gc in the vm
+		 */
+		LIVE("-live");
+
+		private final String argument_;
+
+		private HistogramMode(String argument) {
+			argument_ = argument;
+		}
+
+		/**
+		 * @return the argument of the attach command
+		 */
+		public String getArgument() {
+			return argument_;
+		}
+	}
+
 	private final HotSpotVirtualMachine hVm;
-	private Set<HeapHistogram> currentHist;
+	private final HeapHistogramParser parser_ = new HeapHistogramParser();
+	private final HeapHistory history_;
+	private volatile HistogramMode histogramMode_ = HistogramMode.LIVE;
+	private volatile long lastHistogramCost_ = 0;
+	private volatile long totalHistogramCost_ = 0;
+	private volatile long histogramCount_ = 0;
+	private List<HeapHistogram> disappeared_ = Collections.emptyList();
 
 	static {
 		binaryPrefixes_IEC = new TreeMap<Long, String>();
@@ -133,7 +169,19 @@ public class HeapSampler {
 	 * @param hVm
 	 */
 	public HeapSampler(final HotSpotVirtualMachine hVm) {
+		this(hVm, DEFAULT_HISTORY_SIZE);
+	}
+
+	/**
+	 * initializes the heap sampler
+	 *
+	 * @param hVm
+	 * @param historySize the number of recent histograms kept to compute growth
+	 *                    rates
+	 */
+	public HeapSampler(final HotSpotVirtualMachine hVm, int historySize) {
 		this.hVm = hVm;
+		this.history_ = new HeapHistory(historySize);
 	}
 
 	/**
@@ -142,74 +190,215 @@ public class HeapSampler {
 	 * @param vmid
 	 */
 	public HeapSampler(int vmid) throws IOException, AttachNotSupportedException {
-		this.hVm = (HotSpotVirtualMachine) VirtualMachine.attach(String.valueOf(vmid));
+		this((HotSpotVirtualMachine) VirtualMachine.attach(String.valueOf(vmid)));
 	}
 
 	/**
 	 * Returns all the heap objects present in the VM sorted by their consumption
 	 *
 	 * @param updateDeltas include the delta information
-	 * @return the set of HeapHistograms
+	 * @return the HeapHistograms, ordered by decreasing consumption
 	 * @throws IOException
 	 */
-	public Set<HeapHistogram> getHistogram(boolean updateDeltas) throws IOException {
-		SortedSet<HeapHistogram> updatedHist = new TreeSet<HeapHistogram>();
-		final Matcher matcher = HIST_PATTERN.matcher("");
-		String heapLine;
-		final BufferedReader data = new BufferedReader(new InputStreamReader(hVm.heapHisto()));
-		while ((heapLine = data.readLine()) != null) {
-			matcher.reset(heapLine);
-			if (matcher.matches()) {
-				updatedHist.add(new HeapHistogram(matcher.group(4), matcher.group(2), matcher.group(3)));
-			}
-		}
-		if (updateDeltas && currentHist != null) {
-			updateDeltas(updatedHist, currentHist);
-		}
+	public List<HeapHistogram> getHistogram(boolean updateDeltas) throws IOException {
+		return getHistogram(Integer.MAX_VALUE, updateDeltas);
+	}
 
-		currentHist = updatedHist;
-		return updatedHist;
+	/**
+	 * Returns top heap objects present in the VM sorted by their consumption.
+	 * <p>
+	 * Only the top entries are materialized, they are selected by a bounded heap
+	 * instead of sorting all classes.
+	 *
+	 * @param limit        the top limit
+	 * @param updateDeltas include the delta information
+	 * @return the HeapHistograms, ordered by decreasing consumption
+	 * @throws IOException
+	 */
+	public List<HeapHistogram> getHistogram(final int limit, boolean updateDeltas) throws IOException {
+		update();
+		return selectTop(limit, updateDeltas);
+	}
+
+	/**
+	 * Returns top heap objects of the last fetched histogram, see
+	 * {@link #getHistogram(int, boolean)}
+	 *
+	 * @param limit        the top limit
+	 * @param updateDeltas include the delta information
+	 * @return the HeapHistograms, ordered by decreasing consumption
+	 */
+	public List<HeapHistogram> selectTop(final int limit, boolean updateDeltas) {
+		int[] topRows = parser_.selectTopRows(limit);
+		List<HeapHistogram> topHeapHist = new ArrayList<HeapHistogram>(topRows.length);
+		for (int row : topRows) {
+			topHeapHist.add(newHeapHistogram(parser_.getClassId(row), parser_.getCount(row), parser_.getBytes(row),
+					updateDeltas));
+		}
+		updateDisappeared(updateDeltas);
+		return topHeapHist;
 	}
 
 	/**
-	 * Returns top heap objects present in the VM sorted by their consumption
+	 * Returns the heap objects present in the VM with the highest growth rate
+	 * (in bytes per second) across the recent histograms, see {@link HeapHistory}
 	 *
 	 * @param limit        the top limit
 	 * @param updateDeltas include the delta information
-	 * @return the set of HeapHistograms
+	 * @return the HeapHistograms, ordered by decreasing growth rate
 	 * @throws IOException
 	 */
-	public Set<HeapHistogram> getHistogram(final int limit, boolean updateDeltas) throws IOException {
-		final Set<HeapHistogram> topHeapHist = new TreeSet<HeapHistogram>();
-		int cnt = 0;
-		for (HeapHistogram histogram : getHistogram(updateDeltas)) {
-			topHeapHist.add(histogram);
-			if (++cnt > limit) {
-				break;
-			}
+	public List<HeapHistogram> getTopGrowth(final int limit, boolean updateDeltas) throws IOException {
+		update();
+		return selectTopGrowth(limit, updateDeltas);
+	}
+
+	/**
+	 * Returns the heap objects of the recent histograms with the highest growth
+	 * rate, see {@link #getTopGrowth(int, boolean)}
+	 *
+	 * @param limit        the top limit
+	 * @param updateDeltas include the delta information
+	 * @return the HeapHistograms, ordered by decreasing growth rate
+	 */
+	public List<HeapHistogram> selectTopGrowth(final int limit, boolean updateDeltas) {
+		int[] topClasses = history_.selectTopGrowth(parser_.getClassCount(), limit);
+		List<HeapHistogram> topHeapHist = new ArrayList<HeapHistogram>(topClasses.length);
+		for (int classId : topClasses) {
+			topHeapHist.add(newHeapHistogram(classId, history_.getCount(0, classId), history_.getBytes(0, classId),
+					updateDeltas));
 		}
+		updateDisappeared(updateDeltas);
 		return topHeapHist;
 	}
 
-	// this is computationally expensive!
-	protected void updateDeltas(Set<HeapHistogram> updatedSamples, Set<HeapHistogram> original) {
-		for (HeapHistogram updatedSample : updatedSamples) {
-
-			innerloop: for (HeapHistogram originalSample : original) {
-				if (originalSample.className.equals(updatedSample.className)) {
-					double changePer = ((updatedSample.bytes - originalSample.bytes) * 100.d / originalSample.bytes);
-					String sign = changePer > 0 ? "▲" : "▼";
-					changePer = Math.abs(changePer);
-					if (changePer > 0) {
-						updatedSample.delta = changePer;
-						updatedSample.deltaSign = sign;
-//                        updatedSample.delta = String.format("%s%-5.3f%%", sign, changePer);
-					}
-					break innerloop;
-				}
-			}
+	/**
+	 * Returns the classes which were part of the previous histogram but not of
+	 * the current one (only if deltas are updated). Their count and bytes are
+	 * the ones of the previous histogram.
+	 *
+	 * @return the disappeared classes, ordered by decreasing consumption
+	 */
+	public List<HeapHistogram> getDisappeared() {
+		return disappeared_;
+	}
+
+	/**
+	 * @return the recent histograms
+	 */
+	public HeapHistory getHistory() {
+		return history_;
+	}
+
+	/**
+	 * Fetches a new histogram from the vm and records it in the history, the
+	 * select methods operate on the last fetched histogram
+	 *
+	 * @throws IOException
+	 */
+	public void update() throws IOException {
+		// the histogram is created by the vm while heapHisto blocks, its cost
+		// is part of the measured time
+		long start = System.nanoTime();
+		try (InputStream data = hVm.heapHisto(histogramMode_.getArgument())) {
+			update(data, start);
+		}
+	}
+
+	/**
+	 * Parses the given histogram and records it in the history
+	 *
+	 * @param data  the histogram as printed by the vm, not closed
+	 * @param start the {@link System#nanoTime()} at which the histogram was
+	 *              requested from the vm
+	 * @throws IOException
+	 */
+	void update(InputStream data, long start) throws IOException {
+		parser_.parse(data);
+		long end = System.nanoTime();
+		lastHistogramCost_ = end - start;
+		totalHistogramCost_ += lastHistogramCost_;
+		histogramCount_++;
+		history_.record(end, parser_);
+	}
+
+	public HistogramMode getHistogramMode() {
+		return histogramMode_;
+	}
+
+	public void setHistogramMode(HistogramMode histogramMode) {
+		histogramMode_ = histogramMode;
+	}
+
+	/**
+	 * @return the time the last histogram took to be created by the vm and parsed,
+	 *         in nanoseconds
+	 */
+	public long getLastHistogramCost() {
+		return lastHistogramCost_;
+	}
+
+	/**
+	 * @return the average time a histogram took to be created by the vm and
+	 *         parsed, in nanoseconds
+	 */
+	public long getAverageHistogramCost() {
+		return histogramCount_ == 0 ? 0 : totalHistogramCost_ / histogramCount_;
+	}
+
+	private HeapHistogram newHeapHistogram(int classId, long count, long bytes, boolean updateDeltas) {
+		HeapHistogram histogram = new HeapHistogram(parser_.getClassName(classId), count, bytes);
+		histogram.bytesRate = history_.getBytesRate(classId);
+		histogram.countRate = history_.getCountRate(classId);
+		histogram.leakScore = history_.getLeakScore(classId);
+		if (updateDeltas && history_.size() > 1) {
+			updateDelta(histogram, classId);
+		}
+		return histogram;
+	}
 
+	/**
+	 * Joins the histogram with the previous snapshot by class id
+	 */
+	private void updateDelta(HeapHistogram histogram, int classId) {
+		long previousCount = history_.getCount(1, classId);
+		if (previousCount == 0) {
+			histogram.appeared = true;
+			histogram.countDelta = histogram.count;
+			histogram.bytesDelta = histogram.bytes;
+			return;
+		}
+		// classes of different class loaders share a name, compare their sums
+		long previousBytes = history_.getBytes(1, classId);
+		histogram.countDelta = history_.getCount(0, classId) - previousCount;
+		histogram.bytesDelta = history_.getBytes(0, classId) - previousBytes;
+		double changePer = histogram.bytesDelta * 100.d / previousBytes;
+		String sign = changePer > 0 ? "▲" : "▼";
+		changePer = Math.abs(changePer);
+		if (changePer > 0) {
+			histogram.delta = changePer;
+			histogram.deltaSign = sign;
+		}
+	}
+
+	private void updateDisappeared(boolean updateDeltas) {
+		if (!updateDeltas || history_.size() < 2) {
+			disappeared_ = Collections.emptyList();
+			return;
 		}
+		List<HeapHistogram> disappeared = new ArrayList<HeapHistogram>();
+		for (int classId = 0; classId < parser_.getClassCount(); classId++) {
+			long previousCount = history_.getCount(1, classId);
+			if (previousCount > 0 && history_.getCount(0, classId) == 0) {
+				HeapHistogram histogram = new HeapHistogram(parser_.getClassName(classId), previousCount,
+						history_.getBytes(1, classId));
+				histogram.countDelta = -histogram.count;
+				histogram.bytesDelta = -histogram.bytes;
+				disappeared.add(histogram);
+			}
+		}
+		Collections.sort(disappeared);
+		disappeared_ = disappeared;
 	}
 
 	/**
@@ -255,15 +444,25 @@ public class HeapSampler {
 	 */
 	public class HeapHistogram implements Comparable<HeapHistogram> {
 
-		public final int count;
-		public final int bytes;
+		public final long count;
+		public final long bytes;
 		public final String className;
 		public final String memory;
 		public final String memorySuffix;
 		public double delta;
 		public String deltaSign;
+		// absolute changes since the previous histogram
+		public long countDelta;
+		public long bytesDelta;
+		// true if the class was not part of the previous histogram
+		public boolean appeared;
+		// growth per second across the recent histograms
+		public double bytesRate;
+		public double countRate;
+		// see HeapHistory#getLeakScore(int)
+		public double leakScore;
 
-		private HeapHistogram(final String className, final int count, final int bytes) {
+		private HeapHistogram(final String className, final long count, final long bytes) {
 			this.className = HeapSampler.fromNativeType(className);
 			this.count = count;
 			this.bytes = bytes;
@@ -274,10 +473,6 @@ public class HeapSampler {
 			this.deltaSign = "";
 		}
 
-		private HeapHistogram(final String className, final String count, final String bytes) {
-			this(className, Integer.valueOf(count), Integer.valueOf(bytes));
-		}
-
 		@Override
 		public boolean equals(final Object o) {
 			if (this == o) {
@@ -297,14 +492,7 @@ public class HeapSampler {
 
 		@Override
 		public int compareTo(final HeapHistogram o) {
-			if (bytes > o.bytes) {
-				return -1;
-			} else {
-				if (bytes < o.bytes) {
-					return 1;
-				}
-			}
-			return 0;
+			return Long.compare(o.bytes, bytes);
 		}
 
 		@Override
@@ -0,0 +1,176 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * A map of primitive long keys to long values, using an open-addressing hash
+ * table with linear probing, so neither lookups nor updates allocate.
+ * <p>
+ * Entries are tagged with the generation in which they were put last.
+ * {@link #evictStale()} removes all entries which have not been put since the
+ * last call to {@link #nextGeneration()}, which allows to drop e.g. the ids of
+ * terminated threads.
+ * <p>
+ * Not thread-safe.
+ *
+ * @author paru
+ */
+public class LongLongTable {
+	/**
+	 * Returned by {@link #get(long)} and {@link #put(long, long)} if the key is
+	 * not present
+	 */
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private long[] keys_ = new long[INITIAL_CAPACITY];
+	private long[] values_ = new long[INITIAL_CAPACITY];
+	// 0 marks an empty slot
+	private int[] generations_ = new int[INITIAL_CAPACITY];
+	private int generation_ = 1;
+	private int size_ = 0;
+
+	/**
+	 * @param key
+	 * @return the value of the given key or {@link #NO_VALUE}
+	 */
+	public long get(long key) {
+		int mask = keys_.length - 1;
+		for (int slot = hash(key) & mask; generations_[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys_[slot] == key) {
+				return values_[slot];
+			}
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Sets the value of the given key and marks it as part of the current
+	 * generation
+	 *
+	 * @param key
+	 * @param value
+	 * @return the previous value or {@link #NO_VALUE}
+	 */
+	public long put(long key, long value) {
+		int mask = keys_.length - 1;
+		int slot = hash(key) & mask;
+		for (; generations_[slot] != 0; slot = (slot + 1) & mask) {
+			if (keys_[slot] == key) {
+				long previous = values_[slot];
+				values_[slot] = value;
+				generations_[slot] = generation_;
+				return previous;
+			}
+		}
+		keys_[slot] = key;
+		values_[slot] = value;
+		generations_[slot] = generation_;
+		size_++;
+		// keep the load factor below 0.5
+		if (size_ * 2 > keys_.length) {
+			rehash();
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * Starts a new generation, entries which are not put until the next call to
+	 * {@link #evictStale()} will be removed
+	 */
+	public void nextGeneration() {
+		generation_++;
+		if (generation_ == 0) {
+			generation_ = 1;
+		}
+	}
+
+	/**
+	 * Removes all entries which have not been put in the current generation
+	 *
+	 * @return the number of removed entries
+	 */
+	public int evictStale() {
+		int removed = 0;
+		for (int slot = 0; slot < keys_.length;) {
+			if (generations_[slot] != 0 && generations_[slot] != generation_) {
+				remove(slot);
+				removed++;
+				// the slot may have been refilled by a shifted entry
+			} else {
+				slot++;
+			}
+		}
+		return removed;
+	}
+
+	public int size() {
+		return size_;
+	}
+
+	/**
+	 * Empties the given slot, shifting subsequent entries of the probe sequence
+	 * backwards so that no tombstones are needed
+	 */
+	private void remove(int slot) {
+		int mask = keys_.length - 1;
+		int hole = slot;
+		for (int next = (hole + 1) & mask; generations_[next] != 0; next = (next + 1) & mask) {
+			int home = hash(keys_[next]) & mask;
+			// move the entry if its home slot is not within (hole, next]
+			if (((next - home) & mask) >= ((next - hole) & mask)) {
+				keys_[hole] = keys_[next];
+				values_[hole] = values_[next];
+				generations_[hole] = generations_[next];
+				hole = next;
+			}
+		}
+		generations_[hole] = 0;
+		size_--;
+	}
+
+	private void rehash() {
+		long[] keys = keys_;
+		long[] values = values_;
+		int[] generations = generations_;
+		keys_ = new long[keys.length * 2];
+		values_ = new long[keys.length * 2];
+		generations_ = new int[keys.length * 2];
+		int mask = keys_.length - 1;
+		for (int i = 0; i < keys.length; i++) {
+			if (generations[i] != 0) {
+				int slot = hash(keys[i]) & mask;
+				while (generations_[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				keys_[slot] = keys[i];
+				values_[slot] = values[i];
+				generations_[slot] = generations[i];
+			}
+		}
+	}
+
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
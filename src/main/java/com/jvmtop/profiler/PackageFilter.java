@@ -0,0 +1,169 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides whether a class is filtered from the profile, based on include and
+ * exclude globs.
+ * <p>
+ * Globs are matched against the dot-separated segments of a class name: a
+ * {@code *} as last segment matches all classes below the package, a
+ * {@code *} in between matches exactly one segment and a glob without wildcard
+ * matches exactly one class. The globs are compiled into a trie of segments,
+ * the most specific (longest) matching glob wins, an include wins over an
+ * exclude of the same length. Classes which do not match any glob are filtered
+ * only if include globs are given.
+ *
+ * @author paru
+ */
+public class PackageFilter {
+
+	/**
+	 * Common 3rd-party library packages which often distort application problems
+	 */
+	public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(Arrays.asList("org.eclipse.*",
+			"org.apache.*", "java.*", "sun.*", "com.sun.*", "javax.*", "oracle.*", "com.trilead.*", "org.junit.*",
+			"org.mockito.*", "org.hibernate.*", "com.ibm.*", "com.caucho.*"));
+
+	private static final int NONE = 0;
+	private static final int EXCLUDE = 1;
+	private static final int INCLUDE = 2;
+
+	private static final String WILDCARD = "*";
+
+	private static final class Node {
+		private final Map<String, Node> children_ = new HashMap<String, Node>();
+		private Node anySegment_ = null;
+		// rule for all classes below this node
+		private int subtreeRule_ = NONE;
+		// rule for the class denoted by this node
+		private int exactRule_ = NONE;
+	}
+
+	private final Node root_ = new Node();
+	private final boolean hasIncludes_;
+
+	/**
+	 * Creates a filter which excludes the {@link #DEFAULT_EXCLUDES}
+	 */
+	public PackageFilter() {
+		this(Collections.<String> emptyList(), Collections.<String> emptyList());
+	}
+
+	/**
+	 * Creates a filter with the given globs in addition to the
+	 * {@link #DEFAULT_EXCLUDES}
+	 *
+	 * @param includes
+	 * @param excludes
+	 */
+	public PackageFilter(List<String> includes, List<String> excludes) {
+		super();
+		for (String glob : DEFAULT_EXCLUDES) {
+			add(glob, EXCLUDE);
+		}
+		for (String glob : excludes) {
+			add(glob, EXCLUDE);
+		}
+		for (String glob : includes) {
+			add(glob, INCLUDE);
+		}
+		hasIncludes_ = !includes.isEmpty();
+	}
+
+	/**
+	 * @param className the fully qualified class name
+	 * @return true if the class should not be part of the profile
+	 */
+	public boolean isFiltered(String className) {
+		String[] segments = className.split("\\.");
+		long match = match(root_, segments, 0);
+		int rule = (int) (match & 0xff);
+		if (rule == NONE) {
+			return hasIncludes_;
+		}
+		return rule == EXCLUDE;
+	}
+
+	private void add(String glob, int rule) {
+		String[] segments = glob.trim().split("\\.");
+		Node node = root_;
+		for (int i = 0; i < segments.length; i++) {
+			String segment = segments[i];
+			if (segment.isEmpty()) {
+				continue;
+			}
+			boolean last = i == segments.length - 1;
+			if (last && (segment.equals(WILDCARD) || segment.equals("**"))) {
+				node.subtreeRule_ = Math.max(node.subtreeRule_, rule);
+				return;
+			}
+			Node child;
+			if (segment.equals(WILDCARD)) {
+				if (node.anySegment_ == null) {
+					node.anySegment_ = new Node();
+				}
+				child = node.anySegment_;
+			} else {
+				child = node.children_.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.children_.put(segment, child);
+				}
+			}
+			node = child;
+		}
+		node.exactRule_ = Math.max(node.exactRule_, rule);
+	}
+
+	/**
+	 * Returns the most specific rule matching the segments starting at the given
+	 * index, encoded as (length of the matched glob << 8 | rule) so that a
+	 * greater value denotes a better match.
+	 */
+	private static long match(Node node, String[] segments, int index) {
+		long best = NONE;
+		// a subtree rule matches classes below the package only
+		if (node.subtreeRule_ != NONE && index < segments.length) {
+			best = ((long) index << 8) | node.subtreeRule_;
+		}
+		if (index == segments.length) {
+			if (node.exactRule_ != NONE) {
+				best = Math.max(best, ((long) index << 8) | node.exactRule_);
+			}
+			return best;
+		}
+		Node child = node.children_.get(segments[index]);
+		if (child != null) {
+			best = Math.max(best, match(child, segments, index + 1));
+		}
+		if (node.anySegment_ != null) {
+			best = Math.max(best, match(node.anySegment_, segments, index + 1));
+		}
+		return best;
+	}
+}
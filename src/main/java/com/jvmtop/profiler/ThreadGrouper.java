@@ -0,0 +1,130 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Assigns threads to groups (e.g. thread pools) by normalizing their names:
+ * every part of a thread name matching the pattern is replaced by {@code *},
+ * so that {@code http-nio-8080-exec-12} becomes {@code http-nio-*-exec-*} with
+ * the default pattern.
+ * <p>
+ * Groups are interned to dense int ids. The number of groups is capped, threads
+ * of further groups are assigned to {@link #OTHER_GROUP}. Resolved thread names
+ * are cached, the cache is dropped whenever it exceeds its capacity, so neither
+ * grows unbounded with thread churn.
+ *
+ * @author paru
+ */
+public class ThreadGrouper {
+	/**
+	 * Replaces all digits of a thread name
+	 */
+	public static final String DEFAULT_PATTERN = "\\d+";
+
+	/**
+	 * The group of all threads which do not fit anymore
+	 */
+	public static final int OTHER_GROUP = 0;
+
+	private static final int DEFAULT_MAX_GROUPS = 256;
+	private static final int MAX_CACHED_NAMES = 4096;
+
+	private final Pattern pattern_;
+	private final int maxGroups_;
+	private final Map<String, Integer> groupIds_ = new HashMap<String, Integer>();
+	private final List<String> groupNames_ = new ArrayList<String>();
+	private final Map<String, Integer> nameCache_ = new HashMap<String, Integer>();
+
+	public ThreadGrouper() {
+		this(DEFAULT_PATTERN);
+	}
+
+	/**
+	 * @param pattern regular expression, matching parts of thread names are
+	 *                replaced
+	 */
+	public ThreadGrouper(String pattern) {
+		this(pattern, DEFAULT_MAX_GROUPS);
+	}
+
+	/**
+	 * @param pattern   regular expression, matching parts of thread names are
+	 *                  replaced
+	 * @param maxGroups the maximum number of groups, including
+	 *                  {@link #OTHER_GROUP}
+	 */
+	public ThreadGrouper(String pattern, int maxGroups) {
+		super();
+		pattern_ = Pattern.compile(pattern);
+		maxGroups_ = maxGroups;
+		intern("<other>");
+	}
+
+	/**
+	 * @param threadName
+	 * @return the id of the group of the given thread
+	 */
+	public synchronized int getGroup(String threadName) {
+		Integer group = nameCache_.get(threadName);
+		if (group == null) {
+			if (nameCache_.size() >= MAX_CACHED_NAMES) {
+				nameCache_.clear();
+			}
+			group = intern(pattern_.matcher(threadName).replaceAll("*"));
+			nameCache_.put(threadName, group);
+		}
+		return group;
+	}
+
+	/**
+	 * @param group
+	 * @return the normalized name of the given group
+	 */
+	public synchronized String getGroupName(int group) {
+		return groupNames_.get(group);
+	}
+
+	/**
+	 * @return the number of groups, all ids are lower than this value
+	 */
+	public synchronized int size() {
+		return groupNames_.size();
+	}
+
+	private int intern(String groupName) {
+		Integer group = groupIds_.get(groupName);
+		if (group == null) {
+			if (groupNames_.size() >= maxGroups_) {
+				return OTHER_GROUP;
+			}
+			group = groupNames_.size();
+			groupNames_.add(groupName);
+			groupIds_.put(groupName, group);
+		}
+		return group;
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+/**
+ * Selects the indices of the greatest keys with a bounded min-heap: O(n log k)
+ * time, O(k) space.
+ *
+ * @author paru
+ */
+final class TopSelector {
+
+	private TopSelector() {
+	}
+
+	/**
+	 * @param keys  the keys, indexed by the selectable indices
+	 * @param n     the number of valid keys
+	 * @param limit the maximum number of indices to select
+	 * @return the selected indices, ordered by decreasing key, lower indices win
+	 *         ties
+	 */
+	static int[] select(long[] keys, int n, int limit) {
+		int k = Math.max(0, Math.min(limit, n));
+		int[] heap = new int[k];
+		int size = 0;
+		for (int index = 0; index < n; index++) {
+			if (size < k) {
+				heap[size] = index;
+				siftUp(keys, heap, size++);
+			} else if (k > 0 && isGreater(keys, index, heap[0])) {
+				heap[0] = index;
+				siftDown(keys, heap, 0, size);
+			}
+		}
+		// heap sort, the smallest index is moved to the end first
+		for (int end = size - 1; end > 0; end--) {
+			int min = heap[0];
+			heap[0] = heap[end];
+			heap[end] = min;
+			siftDown(keys, heap, 0, end);
+		}
+		return heap;
+	}
+
+	private static boolean isGreater(long[] keys, int index, int other) {
+		return keys[index] > keys[other] || (keys[index] == keys[other] && index < other);
+	}
+
+	private static void siftUp(long[] keys, int[] heap, int position) {
+		int index = heap[position];
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (!isGreater(keys, heap[parent], index)) {
+				break;
+			}
+			heap[position] = heap[parent];
+			position = parent;
+		}
+		heap[position] = index;
+	}
+
+	private static void siftDown(long[] keys, int[] heap, int position, int size) {
+		int index = heap[position];
+		while (true) {
+			int child = 2 * position + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && isGreater(keys, heap[child], heap[child + 1])) {
+				child++;
+			}
+			if (!isGreater(keys, index, heap[child])) {
+				break;
+			}
+			heap[position] = heap[child];
+			position = child;
+		}
+		heap[position] = index;
+	}
+}
@@ -34,6 +34,7 @@ public abstract class AbstractConsoleView implements ConsoleView {
 	private static final int MIN_WIDTH = 80;
 	static CountDownLatch timer = new CountDownLatch(1);
 	private boolean shouldExit_ = false;
+	private boolean awaitInitialData_ = false;
 	protected final int width;
 	protected String additionalFooterMessage = null;
 
@@ -173,6 +174,23 @@ public abstract class AbstractConsoleView implements ConsoleView {
 		return result;
 	}
 
+	/**
+	 * @return true if the view should wait for its data to be collected before
+	 *         printing it, e.g. because only a bounded number of iterations is
+	 *         printed
+	 */
+	protected boolean awaitInitialData() {
+		return awaitInitialData_;
+	}
+
+	/**
+	 * @param awaitInitialData true if the view should wait for its data to be
+	 *                         collected before printing it
+	 */
+	public void setAwaitInitialData(boolean awaitInitialData) {
+		awaitInitialData_ = awaitInitialData;
+	}
+
 	@Override
 	public void sleep(long millis) throws Exception {
 		timer.await(millis, TimeUnit.MILLISECONDS);
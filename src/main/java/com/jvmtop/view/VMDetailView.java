@@ -21,14 +21,19 @@
 
 package com.jvmtop.view;
 
+import java.io.Closeable;
 import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 
+import com.jvmtop.monitor.CollectorScheduler;
+import com.jvmtop.monitor.CollectorScheduler.Source;
 import com.jvmtop.monitor.VMInfo;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
@@ -36,11 +41,15 @@ import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 /**
  * "detail" view, printing detail metrics of a specific jvm. Also printing the
  * top threads (based on the current CPU usage)
+ * <p>
+ * The metrics, the deadlock detection and the top threads are collected in
+ * the background by a {@link CollectorScheduler}, each with its own period.
+ * Rendering only prints the most recent results.
  *
  * @author paru
  * @author mzakharc
  */
-public class VMDetailView extends AbstractConsoleView {
+public class VMDetailView extends AbstractConsoleView implements Closeable {
 
 	private VMInfo vmInfo_;
 
@@ -56,10 +65,44 @@ public class VMDetailView extends AbstractConsoleView {
 
 	private Map<Long, Long> previousThreadCPUMillis = new HashMap<Long, Long>();
 
+	private final CollectorScheduler scheduler_ = new CollectorScheduler("jvmtop-collector", 3);
+	private final Source metricsSource_;
+	private final Source threadsSource_;
+
+	// results of the last thread collection, null if not supported by the vm
+	private volatile List<ThreadRow> topThreads_ = Collections.emptyList();
+	private volatile int threadTotal_ = 0;
+
+	/**
+	 * A thread of the top threads table, as of its collection
+	 */
+	private static final class ThreadRow {
+		private final long tid_;
+		private final String name_;
+		private final Thread.State state_;
+		private final double cpu_;
+		private final String blockedBy_;
+		private final StackTraceElement[] stackTrace_;
+
+		private ThreadRow(long tid, ThreadInfo info, double cpu) {
+			super();
+			tid_ = tid;
+			name_ = info.getThreadName();
+			state_ = info.getThreadState();
+			cpu_ = cpu;
+			blockedBy_ = getBlockedThread(info);
+			stackTrace_ = info.getStackTrace();
+		}
+	}
+
 	public VMDetailView(int vmid, Integer width) throws Exception {
 		super(width);
 		LocalVirtualMachine localVirtualMachine = LocalVirtualMachine.getLocalVirtualMachine(vmid);
 		vmInfo_ = VMInfo.processNewVM(localVirtualMachine, vmid);
+		metricsSource_ = scheduler_.schedule("vm metrics", vmInfo_::updateMetrics, 1000, 10000, 0.05);
+		// the deadlock check itself only runs once per deadlock interval
+		scheduler_.schedule("deadlocks", vmInfo_::updateDeadlocks, 1000, 60000, 0.02);
+		threadsSource_ = scheduler_.schedule("threads", this::collectTopThreads, 1000, 10000, 0.05);
 	}
 
 	public boolean isSortByTotalCPU() {
@@ -72,8 +115,10 @@ public class VMDetailView extends AbstractConsoleView {
 
 	@Override
 	public void printView() throws Exception {
-		vmInfo_.update();
-
+		if (awaitInitialData()) {
+			// a bounded number of iterations should show data, not placeholders
+			scheduler_.awaitFirstCollections(CollectorScheduler.FIRST_COLLECTION_TIMEOUT);
+		}
 		if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
 			System.out.println("ERROR: Could not fetch telemetries - Process terminated?");
 			exit();
@@ -85,6 +130,11 @@ public class VMDetailView extends AbstractConsoleView {
 			return;
 		}
 
+		if (!metricsSource_.hasCollected()) {
+			System.out.printf(" PID %d: collecting...%n", vmInfo_.getId());
+			return;
+		}
+
 		Map<String, String> properties = vmInfo_.getSystemProperties();
 
 		String command = properties.get("sun.java.command");
@@ -107,7 +157,7 @@ public class VMDetailView extends AbstractConsoleView {
 			System.out.printf(" ARGS: [UNKNOWN] %n");
 		}
 
-		String join = join(vmInfo_.getRuntimeMXBean().getInputArguments(), " ");
+		String join = join(vmInfo_.getInputArguments(), " ");
 		if (join.length() > 65) {
 			System.out.printf(" VMARGS: %s[...]%n", leftStr(join, 65));
 		} else {
@@ -117,9 +167,8 @@ public class VMDetailView extends AbstractConsoleView {
 		System.out.printf(" VM: %s %s %s%n", properties.get("java.vendor"), properties.get("java.vm.name"),
 				properties.get("java.version"));
 		System.out.printf(" UP: %-7s #THR: %-4d #THRPEAK: %-4d #THRCREATED: %-4d USER: %-12s%n",
-				toHHMM(vmInfo_.getRuntimeMXBean().getUptime()), vmInfo_.getThreadCount(),
-				vmInfo_.getThreadMXBean().getPeakThreadCount(), vmInfo_.getThreadMXBean().getTotalStartedThreadCount(),
-				vmInfo_.getOSUser());
+				toHHMM(vmInfo_.getUptime()), vmInfo_.getThreadCount(), vmInfo_.getPeakThreadCount(),
+				vmInfo_.getTotalStartedThreadCount(), vmInfo_.getOSUser());
 
 		System.out.printf(" GC-Time: %-7s  #GC-Runs: %-8d  #TotalLoadedClasses: %-8d%n", toHHMM(vmInfo_.getGcTime()),
 				vmInfo_.getGcCount(), vmInfo_.getTotalLoadedClassCount());
@@ -128,6 +177,8 @@ public class VMDetailView extends AbstractConsoleView {
 				vmInfo_.getGcLoad() * 100, toMB(vmInfo_.getHeapUsed()), toMB(vmInfo_.getHeapMax()),
 				toMB(vmInfo_.getNonHeapUsed()), toMB(vmInfo_.getNonHeapMax()));
 
+		printDeadlockedThreads();
+
 		System.out.println();
 
 		printTopThreads();
@@ -135,68 +186,105 @@ public class VMDetailView extends AbstractConsoleView {
 	}
 
 	/**
+	 * Determines the threads with the highest cpu usage since the last
+	 * collection, together with their stack traces
+	 *
 	 * @throws Exception
 	 */
 	@SuppressWarnings("unchecked")
-	private void printTopThreads() throws Exception {
-		System.out.printf(" %6s %-" + threadNameDisplayWidth_ + "s  %13s %8s    %8s %n", "TID", "NAME", "STATE",
-				"CPU", "BLOCKEDBY");
-
-		if (vmInfo_.getThreadMXBean().isThreadCpuTimeSupported()) {
+	private void collectTopThreads() throws Exception {
+		ThreadMXBean threadMXBean = vmInfo_.getThreadMXBean();
+		if (threadMXBean == null) {
+			return;
+		}
+		if (!threadMXBean.isThreadCpuTimeSupported()) {
+			topThreads_ = null;
+			return;
+		}
 
-			Map<Long, Long> newThreadCPUMillis = new HashMap<Long, Long>();
-			Map<Long, Long> cpuTimeMap = new TreeMap<Long, Long>();
+		Map<Long, Long> newThreadCPUMillis = new HashMap<Long, Long>();
+		Map<Long, Long> cpuTimeMap = new TreeMap<Long, Long>();
 
-			for (Long tid : vmInfo_.getThreadMXBean().getAllThreadIds()) {
-				long threadCpuTime = vmInfo_.getThreadMXBean().getThreadCpuTime(tid);
-				long deltaThreadCpuTime = 0;
-				if (previousThreadCPUMillis.containsKey(tid)) {
-					deltaThreadCpuTime = threadCpuTime - previousThreadCPUMillis.get(tid);
+		for (Long tid : vmInfo_.getProxyClient().getAllThreadIds()) {
+			long threadCpuTime = threadMXBean.getThreadCpuTime(tid);
+			long deltaThreadCpuTime = 0;
+			if (previousThreadCPUMillis.containsKey(tid)) {
+				deltaThreadCpuTime = threadCpuTime - previousThreadCPUMillis.get(tid);
 
-					cpuTimeMap.put(tid, deltaThreadCpuTime);
-				}
-				newThreadCPUMillis.put(tid, threadCpuTime);
+				cpuTimeMap.put(tid, deltaThreadCpuTime);
 			}
+			newThreadCPUMillis.put(tid, threadCpuTime);
+		}
 
-			// collect all stack traces
-			Map<Thread, StackTraceElement[]> allStackTraces = Thread.getAllStackTraces();
-			Map<Long, StackTraceElement[]> stackTraces = new HashMap<Long, StackTraceElement[]>();
-
-			for (Entry<Thread, StackTraceElement[]> entry : allStackTraces.entrySet()) {
-				stackTraces.put(entry.getKey().getId(), entry.getValue());
-			}
+		cpuTimeMap = sortByValue(cpuTimeMap, true);
 
-			cpuTimeMap = sortByValue(cpuTimeMap, true);
-
-			int displayedThreads = 0;
-			for (Long tid : cpuTimeMap.keySet()) {
-				ThreadInfo info = vmInfo_.getThreadMXBean().getThreadInfo(tid);
-				displayedThreads++;
-				if (displayedThreads > numberOfDisplayedThreads && displayedThreadLimit_) {
-					break;
-				}
-				if (info != null) {
-					System.out.printf(" %6d %-" + threadNameDisplayWidth_ + "s  %13s    %5.2f%% %5s %n", tid,
-							leftStr(info.getThreadName(), threadNameDisplayWidth_), info.getThreadState(),
-							getThreadCPUUtilization(vmInfo_.getThreadMXBean().getThreadCpuTime(tid),
-									vmInfo_.getProxyClient().getProcessCpuTime(), 1),
-							getBlockedThread(info));
-					StackTraceElement[] stackTraceElements = vmInfo_.getThreadMXBean()
-							.getThreadInfo(tid, stackTraceElementsShown).getStackTrace();
-					printStackTraces(stackTraceElements);
-				}
+		long processCpuTime = vmInfo_.getProxyClient().getProcessCpuTime();
+		List<ThreadRow> rows = new ArrayList<ThreadRow>();
+		for (Long tid : cpuTimeMap.keySet()) {
+			if (rows.size() >= numberOfDisplayedThreads && displayedThreadLimit_) {
+				break;
 			}
-			if (newThreadCPUMillis.size() >= numberOfDisplayedThreads && displayedThreadLimit_) {
-				System.out.printf(" Note: Only top %d threads (according cpu load) are shown!",
-						numberOfDisplayedThreads);
+			ThreadInfo info = threadMXBean.getThreadInfo(tid, stackTraceElementsShown);
+			if (info != null) {
+				rows.add(new ThreadRow(tid, info,
+						getThreadCPUUtilization(newThreadCPUMillis.get(tid), processCpuTime, 1)));
 			}
-			previousThreadCPUMillis = newThreadCPUMillis;
-		} else {
+		}
+		previousThreadCPUMillis = newThreadCPUMillis;
+		threadTotal_ = newThreadCPUMillis.size();
+		topThreads_ = Collections.unmodifiableList(rows);
+	}
+
+	private void printTopThreads() {
+		System.out.printf(" %6s %-" + threadNameDisplayWidth_ + "s  %13s %8s    %8s %n", "TID", "NAME", "STATE",
+				"CPU", "BLOCKEDBY");
 
+		List<ThreadRow> topThreads = topThreads_;
+		if (topThreads == null) {
 			System.out.printf("%n -Thread CPU telemetries are not available on the monitored jvm/platform-%n");
+			return;
+		}
+		if (!threadsSource_.hasCollected()) {
+			System.out.printf("%n collecting...%n");
+			return;
+		}
+		int displayedThreads = 0;
+		for (ThreadRow row : topThreads) {
+			displayedThreads++;
+			if (displayedThreads > numberOfDisplayedThreads && displayedThreadLimit_) {
+				break;
+			}
+			System.out.printf(" %6d %-" + threadNameDisplayWidth_ + "s  %13s    %5.2f%% %5s %n", row.tid_,
+					leftStr(row.name_, threadNameDisplayWidth_), row.state_, row.cpu_, row.blockedBy_);
+			printStackTraces(row.stackTrace_);
+		}
+		if (threadTotal_ >= numberOfDisplayedThreads && displayedThreadLimit_) {
+			System.out.printf(" Note: Only top %d threads (according cpu load) are shown!", numberOfDisplayedThreads);
 		}
 	}
 
+	private void printDeadlockedThreads() {
+		List<ThreadInfo> deadlockedThreads = vmInfo_.getDeadlockedThreads();
+		if (deadlockedThreads.isEmpty()) {
+			return;
+		}
+		System.out.printf("%n DEADLOCK DETECTED (%d threads)%n", deadlockedThreads.size());
+		for (ThreadInfo info : deadlockedThreads) {
+			System.out.printf(" %6d %-" + threadNameDisplayWidth_ + "s  waiting for %s held by %d%n",
+					info.getThreadId(), leftStr(info.getThreadName(), threadNameDisplayWidth_), info.getLockName(),
+					info.getLockOwnerId());
+			printStackTraces(info.getStackTrace());
+		}
+	}
+
+	/**
+	 * @param deadlockInterval the minimum interval between two deadlock checks
+	 *                         in milliseconds
+	 */
+	public void setDeadlockInterval(long deadlockInterval) {
+		vmInfo_.setDeadlockInterval(deadlockInterval);
+	}
+
 	private static void printStackTraces(StackTraceElement[] stackTraceElements) {
 		for (int i = 0; i < stackTraceElements.length && i < stackTraceElementsShown; i++) {
 			StackTraceElement s = stackTraceElements[i];
@@ -277,6 +365,11 @@ public class VMDetailView extends AbstractConsoleView {
 		return deltaThreadCpuTime / factor / totalTime * 100d;
 	}
 
+	@Override
+	public void close() {
+		scheduler_.close();
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jvmtop.view.ConsoleView#printFooter()
 	 */
@@ -1,15 +1,21 @@
 package com.jvmtop.view;
 
+import com.jvmtop.monitor.CollectorScheduler;
+import com.jvmtop.monitor.CollectorScheduler.Source;
 import com.jvmtop.monitor.VMInfo;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
+import com.jvmtop.profiler.HeapHistory;
 import com.jvmtop.profiler.HeapSampler;
 import com.jvmtop.profiler.HeapSampler.HeapHistogram;
+import com.jvmtop.profiler.HeapSampler.HistogramMode;
 import com.sun.tools.attach.VirtualMachine;
 import sun.tools.attach.HotSpotVirtualMachine;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * a Heap profiler view that displays the top objects in the heap
@@ -22,6 +28,31 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 	private final HotSpotVirtualMachine hVm;
 	private final boolean deltaEnabled;
 	private final int topObjects;
+	private volatile boolean sortByGrowth_ = false;
+
+	private final CollectorScheduler scheduler_ = new CollectorScheduler("jvmtop-collector", 2);
+	private final Source metricsSource_;
+	private final Source histogramSource_;
+
+	// results of the last histogram collection, rendered by printView
+	private volatile List<HeapHistogram> topConsumers_ = Collections.emptyList();
+	private volatile List<HeapHistogram> topGrowth_ = Collections.emptyList();
+	private volatile List<HeapHistogram> disappeared_ = Collections.emptyList();
+
+	/**
+	 * The default maximum share of wall time spent on creating histograms
+	 */
+	public static final double DEFAULT_MAX_HISTOGRAM_COST_SHARE = 0.1;
+
+	/**
+	 * The minimum period between two histograms in milliseconds
+	 */
+	public static final long MIN_HISTOGRAM_PERIOD = 1000;
+
+	/**
+	 * The maximum period between two histograms in milliseconds
+	 */
+	public static final long MAX_HISTOGRAM_PERIOD = 10 * 60 * 1000;
 
 	/**
 	 * initializes this view
@@ -40,6 +71,9 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 		memorySampler_ = new HeapSampler(hVm);
 		this.deltaEnabled = deltaEnabled;
 		this.topObjects = topObjects;
+		metricsSource_ = scheduler_.schedule("vm metrics", vmInfo_::updateMetrics, 1000, 10000, 0.05);
+		histogramSource_ = scheduler_.schedule("heap histogram", this::collectHistogram, MIN_HISTOGRAM_PERIOD,
+				MAX_HISTOGRAM_PERIOD, DEFAULT_MAX_HISTOGRAM_COST_SHARE);
 	}
 
 	/**
@@ -56,6 +90,10 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 
 	@Override
 	public void printView() throws Exception {
+		if (awaitInitialData()) {
+			// a bounded number of iterations should show data, not placeholders
+			scheduler_.awaitFirstCollections(CollectorScheduler.FIRST_COLLECTION_TIMEOUT);
+		}
 		if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
 			System.out.println("ERROR: Could not fetch telemetries - Process terminated?");
 			exit();
@@ -67,34 +105,138 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 			return;
 		}
 
-		vmInfo_.update();
+		if (!metricsSource_.hasCollected()) {
+			System.out.printf("Memory Profiling PID %d: collecting...%n", vmInfo_.getId());
+			return;
+		}
 
 		int w = width - 40;
 		System.out.printf("Memory Profiling PID %d: %40s %n%n", vmInfo_.getId(), leftStr(vmInfo_.getDisplayName(), w));
 		System.out.printf("HEAP:%5s /%5s GC-Time: %-7s #GC-Counts: %-8d \n", toMB(vmInfo_.getHeapUsed()),
 				toMB(vmInfo_.getHeapMax()), toHHMM(vmInfo_.getGcTime()), vmInfo_.getGcCount());
 
+		System.out.printf("Histogram (%s): %.2fms (avg %.2fms), refreshed every %.1fs, %s%n",
+				memorySampler_.getHistogramMode().name().toLowerCase(), memorySampler_.getLastHistogramCost() / 1000000d,
+				memorySampler_.getAverageHistogramCost() / 1000000d, histogramSource_.getPeriod() / 1000d,
+				histogramSource_.hasCollected() ? String.format("%.1fs ago", histogramSource_.getAge() / 1000d)
+						: "collecting...");
+		if (histogramSource_.getLastError() != null) {
+			System.out.printf("ERROR: Could not create histogram: %s%n", histogramSource_.getLastError());
+		}
+
 		System.out.println();
 
+		if (sortByGrowth_) {
+			printGrowth();
+			return;
+		}
+
 		// these are the spaces taken up by the formatting, the rest is usable
 		// for printing out the method name
 		w = width - (8 + 4 + 5 + 3 + 12 + 3);
+		if (deltaEnabled) {
+			w -= 14 + 13;
+		}
 
-		for (HeapHistogram stats : memorySampler_.getHistogram(topObjects, deltaEnabled)) {
-			if (stats.delta > 0) {
-				System.out.printf("%8s %3s / %5.2f%% %3s %5.3f%% %12s %s\n", stats.memory, stats.memorySuffix,
-						(stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), stats.deltaSign, stats.delta, stats.count,
+		for (HeapHistogram stats : topConsumers_) {
+			if (!deltaEnabled) {
+				System.out.printf("%8s %3s / %5.2f%% %12s %s\n", stats.memory, stats.memorySuffix,
+						(stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), stats.count, shortFQN(stats.className, w));
+			} else if (stats.appeared) {
+				System.out.printf("%8s %3s / %5.2f%% %10s %13s %12s %12s %s\n", stats.memory, stats.memorySuffix,
+						(stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), "new", "", "", stats.count,
 						shortFQN(stats.className, w));
 			} else {
-				System.out.printf("%8s %3s / %5.2f%% %10s %12s %s\n", stats.memory, stats.memorySuffix,
-						(stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), "", stats.count,
+				System.out.printf("%8s %3s / %5.2f%% %3s %5.3f%% %13s %+12d %12s %s\n", stats.memory,
+						stats.memorySuffix, (stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), stats.deltaSign,
+						stats.delta, toDeltaString(stats.bytesDelta), stats.countDelta, stats.count,
 						shortFQN(stats.className, w));
 			}
 		}
 		System.out.println("");
 		System.out.println(
 				"Note: Only top " + topObjects + " objects (according to their memory consumptions) are shown");
+		if (deltaEnabled) {
+			List<HeapHistogram> disappeared = disappeared_;
+			if (!disappeared.isEmpty()) {
+				HeapHistogram largest = disappeared.get(0);
+				System.out.printf("%d classes disappeared since the last update, the largest was %s (%s)%n",
+						disappeared.size(), shortFQN(largest.className, w),
+						HeapSampler.toHumanFormString(largest.bytes));
+			}
+		}
+
+	}
 
+	/**
+	 * Fetches a new histogram and computes both top lists, so that switching
+	 * the sorting does not need another histogram
+	 */
+	private void collectHistogram() throws Exception {
+		memorySampler_.update();
+		topConsumers_ = memorySampler_.selectTop(topObjects, deltaEnabled);
+		disappeared_ = memorySampler_.getDisappeared();
+		topGrowth_ = memorySampler_.selectTopGrowth(topObjects, deltaEnabled);
+	}
+
+	private void printGrowth() throws Exception {
+		// these are the spaces taken up by the formatting, the rest is usable
+		// for printing out the class name
+		int w = width - (8 + 4 + 5 + 3 + 15 + 15 + 14 + 3);
+		List<HeapHistogram> top = topGrowth_;
+		HeapHistory history = memorySampler_.getHistory();
+		System.out.printf("Growth across the last %d histograms%n%n", history.size());
+		System.out.printf("%8s %3s / %6s %15s %15s %13s %s%n", "", "", "heap", "bytes/s", "instances/s", "leak score",
+				"class");
+		for (HeapHistogram stats : top) {
+			System.out.printf("%8s %3s / %5.2f%% %15s %15.1f %13.1f %s\n", stats.memory, stats.memorySuffix,
+					(stats.bytes * 1.d * 100 / vmInfo_.getHeapUsed()), toDeltaString((long) stats.bytesRate),
+					stats.countRate, stats.leakScore, shortFQN(stats.className, w));
+		}
+		System.out.println("");
+		System.out.println("Note: Only top " + topObjects + " objects (according to their growth rates) are shown");
+		if (history.size() < HeapHistory.MIN_REGRESSION_SNAPSHOTS) {
+			System.out.println("Note: Leak scores require at least " + HeapHistory.MIN_REGRESSION_SNAPSHOTS
+					+ " histograms");
+		}
+	}
+
+	/**
+	 * @param histogramMode selects the objects the histograms cover
+	 */
+	public void setHistogramMode(HistogramMode histogramMode) {
+		memorySampler_.setHistogramMode(histogramMode);
+	}
+
+	/**
+	 * @param share the maximum share of wall time (between 0 and 1, exclusive)
+	 *              the vm may spend on creating histograms, the histogram period
+	 *              is extended accordingly
+	 */
+	public void setMaxHistogramCostShare(double share) {
+		histogramSource_.setCostShare(share);
+	}
+
+	/**
+	 * Switches between sorting by memory consumption and by growth rate
+	 */
+	public void toggleSortByGrowth() {
+		sortByGrowth_ = !sortByGrowth_;
+	}
+
+	public boolean isSortByGrowth() {
+		return sortByGrowth_;
+	}
+
+	public void setSortByGrowth(boolean sortByGrowth) {
+		sortByGrowth_ = sortByGrowth;
+	}
+
+	private static String toDeltaString(long bytesDelta) {
+		if (bytesDelta == 0) {
+			return "0 B";
+		}
+		return (bytesDelta > 0 ? "+" : "-") + HeapSampler.toHumanFormString(Math.abs(bytesDelta));
 	}
 
 	private static String shortFQN(String fqn, int size) {
@@ -107,6 +249,7 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 
 	@Override
 	public void close() throws IOException {
+		scheduler_.close();
 		hVm.detach();
 	}
 
@@ -115,7 +258,7 @@ public class VMMemProfileView extends AbstractConsoleView implements Closeable {
 	 */
 	@Override
 	public void printFooter() {
-		//
+		System.out.println("\n" + " Hotkeys: [S] Toggle sorting by consumption/growth;");
 	}
 
 }
@@ -20,16 +20,42 @@
  */
 package com.jvmtop.view;
 
+import com.jvmtop.monitor.DeadlockProbe;
+import com.jvmtop.monitor.VMDiscovery;
 import com.jvmtop.monitor.VMInfo;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * "overview" view, providing the most-important metrics of all accessible jvms
  * in a top-like manner.
+ * <p>
+ * The jvms are refreshed concurrently by a bounded pool of threads. A jvm
+ * whose refresh does not complete within {@link #REFRESH_TIMEOUT} is shown with
+ * its last values and marked as stale, it is not refreshed again until its
+ * pending refresh has completed.
+ * <p>
+ * Newly discovered jvms are attached in the background as well, they are shown
+ * as attaching meanwhile. A failed attach is retried with an exponential
+ * backoff, up to {@link #MAX_ATTACH_RETRIES} times. On the first refresh, and
+ * on every refresh if only a bounded number of iterations is printed, pending
+ * attaches are awaited for up to {@link #REFRESH_TIMEOUT}.
+ * <p>
+ * Jvms are discovered by a {@link VMDiscovery}, which reports started and
+ * terminated jvms without scanning or attaching. If the file system cannot be
+ * watched, all jvms are scanned on every refresh instead.
  *
  * @author paru
  */
@@ -38,20 +64,108 @@ public class VMOverviewView extends AbstractConsoleView {
 
 	private Map<Integer, LocalVirtualMachine> vmMap = new HashMap<Integer, LocalVirtualMachine>();
 
+	private long deadlockInterval_ = DeadlockProbe.DEFAULT_INTERVAL;
+
+	/**
+	 * The maximum number of jvms refreshed concurrently
+	 */
+	public static final int REFRESH_THREADS = Math.min(16, Runtime.getRuntime().availableProcessors() * 2);
+
+	/**
+	 * The time in milliseconds a refresh waits for the jvms
+	 */
+	public static final long REFRESH_TIMEOUT = 2000;
+
+	private final ExecutorService refreshPool_ = Executors.newFixedThreadPool(REFRESH_THREADS, r -> {
+		Thread thread = new Thread(r, "jvmtop-refresh");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// the refresh of a jvm which has not completed yet
+	private final Map<VMInfo, Future<?>> pendingUpdates_ = new HashMap<VMInfo, Future<?>>();
+
+	/**
+	 * The maximum number of jvms attached concurrently
+	 */
+	public static final int ATTACH_THREADS = 4;
+
+	/**
+	 * The delay in milliseconds before the first retry of a failed attach, it
+	 * doubles with every further failure
+	 */
+	public static final long MIN_ATTACH_BACKOFF = 1000;
+
+	/**
+	 * The maximum delay in milliseconds between two attach retries
+	 */
+	public static final long MAX_ATTACH_BACKOFF = 5 * 60 * 1000;
+
+	/**
+	 * The maximum number of retries of a failed attach
+	 */
+	public static final int MAX_ATTACH_RETRIES = 10;
+
+	private final ExecutorService attachPool_ = Executors.newFixedThreadPool(ATTACH_THREADS, r -> {
+		Thread thread = new Thread(r, "jvmtop-attach");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * The attach of a jvm which is not attached yet
+	 */
+	private static final class AttachAttempt {
+		private final LocalVirtualMachine localVm_;
+		private Future<VMInfo> pending_ = null;
+		private int failures_ = 0;
+		private long nextAttempt_ = 0;
+
+		private AttachAttempt(LocalVirtualMachine localVm) {
+			super();
+			localVm_ = localVm;
+		}
+	}
+
+	// by vmid
+	private final Map<Integer, AttachAttempt> attachAttempts_ = new HashMap<Integer, AttachAttempt>();
+
+	// null if the jvms are scanned on every refresh
+	private VMDiscovery discovery_ = null;
+
+	private volatile boolean perfDataMode_ = false;
+
+	private boolean firstRefresh_ = true;
+
 	public VMOverviewView(Integer width) {
 		super(width);
+		if (!LocalVirtualMachine.isJ9Mode()) {
+			try {
+				discovery_ = new VMDiscovery();
+			} catch (IOException e) {
+				Logger.getLogger("jvmtop").log(Level.FINE, "cannot watch for jvms, falling back to scanning", e);
+			}
+		}
 	}
 
 	public void printView() throws Exception {
 		printHeader();
 		// to reduce cpu effort, scan only every 5 iterations for new vms
 		scanForNewVMs();
+		if (firstRefresh_ || awaitInitialData()) {
+			awaitAttachAttempts();
+			firstRefresh_ = false;
+		}
+		processAttachAttempts();
 		updateVMs(vmInfoList);
-		Collections.sort(vmInfoList, VMInfo.CPU_LOAD_COMPARATOR);
+		sortByCpuLoad(vmInfoList);
 
 		for (VMInfo vmInfo : vmInfoList) {
 			if (vmInfo.getState() == VMInfoState.ATTACHED) {
-				printVM(vmInfo);
+				printVM(vmInfo, pendingUpdates_.containsKey(vmInfo));
+			} else if (vmInfo.getState() == VMInfoState.ATTACHING) {
+				System.out.printf("%5d %-15.15s [ATTACHING...] %n", vmInfo.getId(),
+						getEntryPointClass(vmInfo.getDisplayName()));
 			} else if (vmInfo.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
 				System.out.printf("%5d %-15.15s [ERROR: Could not fetch telemetries (Process DEAD?)] %n",
 						vmInfo.getId(), getEntryPointClass(vmInfo.getDisplayName()));
@@ -84,18 +198,18 @@ public class VMOverviewView extends AbstractConsoleView {
 	 * @return
 	 * @throws Exception
 	 */
-	private void printVM(VMInfo vmInfo) throws Exception {
+	private void printVM(VMInfo vmInfo, boolean stale) throws Exception {
 
 		String deadlockState = "";
 		if (vmInfo.hasDeadlockThreads()) {
 			deadlockState = "!D";
 		}
 
-		System.out.printf("%5d %-25.15s %7s %7s %7s %7s %6.2f%% %6.2f%% %6.5s %8.4s %5d %3.2s%n", vmInfo.getId(),
+		System.out.printf("%5d %-25.15s %7s %7s %7s %7s %6.2f%% %6.2f%% %6.5s %8.4s %5d %3.2s%s%n", vmInfo.getId(),
 				getEntryPointClass(vmInfo.getDisplayName()), toMB(vmInfo.getHeapUsed()), toMB(vmInfo.getHeapMax()),
 				toMB(vmInfo.getNonHeapUsed()), toMB(vmInfo.getNonHeapMax()), vmInfo.getCpuLoad() * 100,
 				vmInfo.getGcLoad() * 100, vmInfo.getVMVersion(), vmInfo.getOSUser(), vmInfo.getThreadCount(),
-				deadlockState);
+				deadlockState, stale ? " [STALE]" : "");
 
 	}
 
@@ -104,9 +218,44 @@ public class VMOverviewView extends AbstractConsoleView {
 	 * @throws Exception
 	 */
 	private void updateVMs(List<VMInfo> vmList) throws Exception {
+		for (final VMInfo vmInfo : vmList) {
+			// a jvm which is still busy with its last refresh is skipped
+			if (!pendingUpdates_.containsKey(vmInfo)) {
+				pendingUpdates_.put(vmInfo, refreshPool_.submit(() -> {
+					vmInfo.update();
+					return null;
+				}));
+			}
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REFRESH_TIMEOUT);
+		Iterator<Entry<VMInfo, Future<?>>> iterator = pendingUpdates_.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Future<?> update = iterator.next().getValue();
+			long remaining = deadline - System.nanoTime();
+			try {
+				update.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// stays pending, the jvm is shown as stale
+				continue;
+			} catch (ExecutionException e) {
+				Logger.getLogger("jvmtop").log(Level.FINE, "error during update", e.getCause());
+			}
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Sorts by the cpu load as of now, the load of a stale jvm may change while
+	 * sorting
+	 *
+	 * @param vmList
+	 */
+	private static void sortByCpuLoad(List<VMInfo> vmList) {
+		final Map<VMInfo, Double> cpuLoads = new HashMap<VMInfo, Double>();
 		for (VMInfo vmInfo : vmList) {
-			vmInfo.update();
+			cpuLoads.put(vmInfo, vmInfo.getCpuLoad());
 		}
+		Collections.sort(vmList, (o1, o2) -> cpuLoads.get(o2).compareTo(cpuLoads.get(o1)));
 	}
 
 	/**
@@ -114,6 +263,10 @@ public class VMOverviewView extends AbstractConsoleView {
 	 * @param set
 	 */
 	private void scanForNewVMs() {
+		if (discovery_ != null) {
+			processDiscoveredVMs();
+			return;
+		}
 		Map<Integer, LocalVirtualMachine> machines = LocalVirtualMachine.getNewVirtualMachines(vmMap);
 		Set<Entry<Integer, LocalVirtualMachine>> set = machines.entrySet();
 
@@ -122,13 +275,150 @@ public class VMOverviewView extends AbstractConsoleView {
 			int vmid = localvm.vmid();
 
 			if (!vmMap.containsKey(vmid)) {
-				VMInfo vmInfo = VMInfo.processNewVM(localvm, vmid);
-				vmInfoList.add(vmInfo);
+				addVM(vmid, localvm);
 			}
 		}
 		vmMap = machines;
 	}
 
+	/**
+	 * Adds the jvms started and removes the jvms terminated since the last
+	 * refresh, as reported by the discovery
+	 */
+	private void processDiscoveredVMs() {
+		Set<Integer> vmids = discovery_.poll();
+		for (Integer vmid : vmids) {
+			if (!vmMap.containsKey(vmid)) {
+				// reads the instrumentation of the jvm only, it is attached by
+				// the attach pool
+				LocalVirtualMachine localvm = LocalVirtualMachine.getMonitoredVirtualMachine(vmid);
+				if (localvm != null) {
+					vmMap.put(vmid, localvm);
+					addVM(vmid, localvm);
+				}
+				// otherwise the instrumentation is not initialized yet, it is
+				// retried on the next refresh
+			}
+		}
+		Iterator<Integer> iterator = vmMap.keySet().iterator();
+		while (iterator.hasNext()) {
+			Integer vmid = iterator.next();
+			if (!vmids.contains(vmid)) {
+				iterator.remove();
+				removeVM(vmid);
+			}
+		}
+	}
+
+	private void addVM(int vmid, LocalVirtualMachine localvm) {
+		vmInfoList.add(VMInfo.createDeadVM(vmid, localvm, VMInfoState.ATTACHING));
+		AttachAttempt attempt = new AttachAttempt(localvm);
+		attachAttempts_.put(vmid, attempt);
+		attach(vmid, attempt);
+	}
+
+	private void removeVM(int vmid) {
+		attachAttempts_.remove(vmid);
+		Iterator<VMInfo> iterator = vmInfoList.iterator();
+		while (iterator.hasNext()) {
+			VMInfo vmInfo = iterator.next();
+			if (vmInfo.getId() == vmid) {
+				iterator.remove();
+				pendingUpdates_.remove(vmInfo);
+			}
+		}
+	}
+
+	private void attach(final int vmid, AttachAttempt attempt) {
+		final LocalVirtualMachine discoveredVm = attempt.localVm_;
+		final boolean retry = attempt.failures_ > 0;
+		attempt.pending_ = attachPool_.submit(() -> {
+			// a retry looks the jvm up again, e.g. its management agent may have
+			// been started meanwhile
+			LocalVirtualMachine localvm = retry ? LocalVirtualMachine.getLocalVirtualMachine(vmid) : discoveredVm;
+			VMInfo vmInfo = perfDataMode_ ? VMInfo.processNewVMFromPerfData(localvm, vmid)
+					: VMInfo.processNewVM(localvm, vmid);
+			vmInfo.setDeadlockInterval(deadlockInterval_);
+			return vmInfo;
+		});
+	}
+
+	/**
+	 * Waits for the pending attaches for up to {@link #REFRESH_TIMEOUT}, a
+	 * failed or timed out attach is picked up as usual
+	 *
+	 * @throws InterruptedException
+	 */
+	private void awaitAttachAttempts() throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REFRESH_TIMEOUT);
+		for (AttachAttempt attempt : attachAttempts_.values()) {
+			if (attempt.pending_ == null) {
+				continue;
+			}
+			long remaining = deadline - System.nanoTime();
+			try {
+				attempt.pending_.get(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				// stays pending, the jvm is shown as attaching
+			} catch (ExecutionException e) {
+				// logged when the attach is picked up
+			}
+		}
+	}
+
+	/**
+	 * Picks up the completed attaches and retries the failed ones whose backoff
+	 * has elapsed
+	 *
+	 * @throws InterruptedException
+	 */
+	private void processAttachAttempts() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		Iterator<Entry<Integer, AttachAttempt>> iterator = attachAttempts_.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Entry<Integer, AttachAttempt> entry = iterator.next();
+			int vmid = entry.getKey();
+			AttachAttempt attempt = entry.getValue();
+			if (attempt.pending_ != null) {
+				if (!attempt.pending_.isDone()) {
+					continue;
+				}
+				VMInfo vmInfo;
+				try {
+					vmInfo = attempt.pending_.get();
+				} catch (ExecutionException e) {
+					Logger.getLogger("jvmtop").log(Level.FINE, "error during attach (PID=" + vmid + ")", e.getCause());
+					vmInfo = VMInfo.createDeadVM(vmid, attempt.localVm_);
+				}
+				attempt.pending_ = null;
+				replaceVM(vmid, vmInfo);
+				if (vmInfo.getState() == VMInfoState.ATTACHED) {
+					iterator.remove();
+					continue;
+				}
+				attempt.failures_++;
+				if (attempt.failures_ > MAX_ATTACH_RETRIES) {
+					iterator.remove();
+					continue;
+				}
+				long backoff = MIN_ATTACH_BACKOFF << Math.min(attempt.failures_ - 1, 20);
+				attempt.nextAttempt_ = now + Math.min(MAX_ATTACH_BACKOFF, backoff);
+			}
+			if (now >= attempt.nextAttempt_) {
+				attach(vmid, attempt);
+			}
+		}
+	}
+
+	private void replaceVM(int vmid, VMInfo vmInfo) {
+		for (int i = 0; i < vmInfoList.size(); i++) {
+			if (vmInfoList.get(i).getId() == vmid) {
+				vmInfoList.set(i, vmInfo);
+				return;
+			}
+		}
+	}
+
 	/**
 	 *
 	 */
@@ -137,6 +427,27 @@ public class VMOverviewView extends AbstractConsoleView {
 				"HPMAX", "NHCUR", "NHMAX", "CPU", "GC", "VM", "USERNAME", "#T", "DL");
 	}
 
+	/**
+	 * @param deadlockInterval the minimum interval between two deadlock checks
+	 *                         of a jvm in milliseconds, the DL column shows the
+	 *                         result of the last check
+	 */
+	public void setDeadlockInterval(long deadlockInterval) {
+		deadlockInterval_ = deadlockInterval;
+		for (VMInfo vmInfo : vmInfoList) {
+			vmInfo.setDeadlockInterval(deadlockInterval);
+		}
+	}
+
+	/**
+	 * @param perfDataMode true to read the metrics of the jvms from their perf
+	 *                     data files instead of attaching to them, which shows
+	 *                     no cpu load and no deadlocks
+	 */
+	public void setPerfDataMode(boolean perfDataMode) {
+		perfDataMode_ = perfDataMode;
+	}
+
 	public List<Integer> getVMIDs() {
 		List<Integer> vmList = new LinkedList<>();
 		for (VMInfo vmInfo : vmInfoList) {
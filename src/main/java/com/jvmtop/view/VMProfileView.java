@@ -24,67 +24,265 @@ import com.jvmtop.monitor.VMInfo;
 import com.jvmtop.monitor.VMInfoState;
 import com.jvmtop.openjdk.tools.LocalVirtualMachine;
 import com.jvmtop.profiler.CPUSampler;
+import com.jvmtop.profiler.CollapsedStackWriter;
 import com.jvmtop.profiler.MethodStats;
+import com.jvmtop.profiler.PackageFilter;
+import com.jvmtop.profiler.ThreadGrouper;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.Thread.State;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * CPU sampling-based profiler view which shows methods with top CPU usage.
+ * CPU sampling-based profiler view which shows methods with top CPU usage, or
+ * in wall-clock mode the methods and locks threads are blocked or waiting in.
  *
  * @author paru
  *
  */
-public class VMProfileView extends AbstractConsoleView {
+public class VMProfileView extends AbstractConsoleView implements Closeable {
+
+	/**
+	 * The default interval between two samples in microseconds
+	 */
+	public static final long DEFAULT_SAMPLE_INTERVAL = 100 * 1000;
+
+	/**
+	 * Smallest accepted sample interval in microseconds, samples which take
+	 * longer than the interval are taken back to back
+	 */
+	public static final long MIN_SAMPLE_INTERVAL = 100;
+
+	// consecutive failed samples after which the vm is considered unreachable
+	private static final int MAX_SAMPLE_ERRORS = 3;
+
+	private static final State[] WAIT_STATE_COLUMNS = { State.BLOCKED, State.WAITING, State.TIMED_WAITING };
 
 	private CPUSampler cpuSampler_;
 
+	private final ScheduledExecutorService samplerExecutor_;
+
+	// only accessed by the sampler thread
+	private int sampleErrors_ = 0;
+
+	private volatile Throwable lastSampleError_ = null;
+
 	private VMInfo vmInfo_;
 
+	private volatile boolean inclusive_ = false;
+
+	// the displayed thread group, ALL_GROUPS shows the time of all threads
+	private static final int ALL_GROUPS = -1;
+
+	private volatile int threadGroup_ = ALL_GROUPS;
+
+	/**
+	 * The ways methods can be ranked
+	 */
+	public enum Ranking {
+		/**
+		 * by the time accumulated since attaching
+		 */
+		CUMULATIVE,
+		/**
+		 * by the time of a sliding window
+		 */
+		WINDOW,
+		/**
+		 * by exponentially decayed time
+		 */
+		DECAYED
+	}
+
+	/**
+	 * The default length of the sliding window in seconds
+	 */
+	public static final int DEFAULT_WINDOW = 30;
+
+	/**
+	 * The default half-life of decayed rankings in seconds
+	 */
+	public static final int DEFAULT_HALF_LIFE = 10;
+
+	private volatile Ranking ranking_ = Ranking.CUMULATIVE;
+
+	private long windowNanos_ = TimeUnit.SECONDS.toNanos(DEFAULT_WINDOW);
+
+	private long halfLifeNanos_ = TimeUnit.SECONDS.toNanos(DEFAULT_HALF_LIFE);
+
+	private CollapsedStackWriter collapsedStackWriter_ = null;
+
+	private boolean streamCollapsedStacks_ = false;
+
 	public VMProfileView(int vmid, Integer width) throws Exception {
+		this(vmid, width, DEFAULT_SAMPLE_INTERVAL, new PackageFilter(), new ThreadGrouper(), false);
+	}
+
+	/**
+	 * @param vmid           the PID of the vm
+	 * @param width          the width to be used for printing
+	 * @param sampleInterval the interval between two samples in microseconds
+	 * @param filter         decides which frames are part of the profile
+	 * @param grouper        assigns the sampled threads to groups
+	 * @param wallClock      if true, the wall-clock time of blocked and waiting
+	 *                       threads is profiled instead of cpu time
+	 * @throws Exception
+	 */
+	public VMProfileView(int vmid, Integer width, long sampleInterval, PackageFilter filter, ThreadGrouper grouper,
+			boolean wallClock) throws Exception {
 		super(width);
 		LocalVirtualMachine localVirtualMachine = LocalVirtualMachine.getLocalVirtualMachine(vmid);
 		vmInfo_ = VMInfo.processNewVM(localVirtualMachine, vmid);
-		cpuSampler_ = new CPUSampler(vmInfo_);
+		cpuSampler_ = new CPUSampler(vmInfo_, filter, grouper, wallClock);
+		samplerExecutor_ = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "jvmtop-sampler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// a fixed rate keeps the sample rate independent of rendering, a slow
+		// sample delays the following ones but they never run concurrently
+		samplerExecutor_.scheduleAtFixedRate(this::sample, 0, sampleInterval, TimeUnit.MICROSECONDS);
 	}
 
-	@Override
-	public void sleep(long millis) throws Exception {
-		long cur = System.currentTimeMillis();
-		cpuSampler_.update();
-		while (cur + millis > System.currentTimeMillis()) {
+	private void sample() {
+		try {
 			cpuSampler_.update();
-			super.sleep(100);
+			sampleErrors_ = 0;
+		} catch (Throwable e) {
+			Logger.getLogger("jvmtop").log(Level.FINE, "error during sampling", e);
+			lastSampleError_ = e;
+			// single failures are skipped, a vm which keeps failing is reported
+			// by printView and sampling stops
+			if (++sampleErrors_ >= MAX_SAMPLE_ERRORS) {
+				vmInfo_.reportUpdateError(e);
+				samplerExecutor_.shutdown();
+			}
 		}
-
 	}
 
 	@Override
 	public void printView() throws Exception {
 		if (vmInfo_.getState() == VMInfoState.ATTACHED_UPDATE_ERROR) {
 			System.out.println("ERROR: Could not fetch telemetries - Process terminated?");
+			printSampleError();
 			exit();
 			return;
 		}
 		if (vmInfo_.getState() != VMInfoState.ATTACHED) {
 			System.out.println("ERROR: Could not attach to process.");
+			printSampleError();
 			exit();
 			return;
 		}
 
 		int w = width - 40;
-		System.out.printf(" Profiling PID %d: %40s %n%n", vmInfo_.getId(), leftStr(vmInfo_.getDisplayName(), w));
+		System.out.printf(" Profiling PID %d (%s): %40s %n", vmInfo_.getId(),
+				cpuSampler_.isWallClock() ? "wall-clock" : "cpu", leftStr(vmInfo_.getDisplayName(), w));
+		System.out.printf(" Sample latency: %6.2fms (avg %6.2fms, %s)%n",
+				cpuSampler_.getLastSampleLatency() / 1000000d, cpuSampler_.getAverageSampleLatency() / 1000000d,
+				cpuSampler_.isBatchedSampling() ? "batched" : "per-thread");
 
 		// these are the spaces taken up by the formatting, the rest is usable
 		// for printing out the method name
 		w = width - (1 + 6 + 3 + 9 + 3 + 2);
-		for (Iterator<MethodStats> iterator = cpuSampler_.getTop(20).iterator(); iterator.hasNext();) {
+		int group = threadGroup_;
+		// the call tree is not partitioned, thread groups show exclusive time only
+		boolean inclusive = inclusive_ && group == ALL_GROUPS;
+		// recent rankings are kept for the exclusive time of all threads only
+		Ranking ranking = inclusive || group != ALL_GROUPS ? Ranking.CUMULATIVE : ranking_;
+		boolean stateBreakdown = cpuSampler_.isWallClock() && !inclusive && ranking == Ranking.CUMULATIVE;
+		if (stateBreakdown) {
+			w -= WAIT_STATE_COLUMNS.length * 8;
+		}
+		List<MethodStats> top;
+		long total;
+		if (inclusive) {
+			top = cpuSampler_.getTopInclusive(20);
+			total = cpuSampler_.getTotal();
+		} else if (ranking == Ranking.WINDOW) {
+			top = cpuSampler_.getTimeline().getTopWindow(windowNanos_, 20);
+			total = cpuSampler_.getTimeline().getTotalWindow(windowNanos_);
+		} else if (ranking == Ranking.DECAYED) {
+			top = cpuSampler_.getTimeline().getTopDecayed(halfLifeNanos_, 20);
+			total = cpuSampler_.getTimeline().getTotalDecayed(halfLifeNanos_);
+		} else if (group == ALL_GROUPS) {
+			top = cpuSampler_.getTop(20);
+			total = cpuSampler_.getTotal();
+		} else {
+			top = cpuSampler_.getTop(group, 20);
+			total = cpuSampler_.getGroupTotal(group);
+		}
+		System.out.printf(" Thread group: %s (%d groups)%n",
+				group == ALL_GROUPS ? "<all>" : cpuSampler_.getThreadGrouper().getGroupName(group),
+				cpuSampler_.getThreadGrouper().size());
+		System.out.printf(" Showing %s time, %s%n%n", inclusive ? "inclusive (self + callees)" : "exclusive (self)",
+				describe(ranking));
+		if (stateBreakdown) {
+			System.out.printf(" %-21s %7s %7s %7s%n", "", "BLOCKED", "WAITING", "TIMED_W");
+		}
+		for (Iterator<MethodStats> iterator = top.iterator(); iterator.hasNext();) {
 			MethodStats stats = iterator.next();
-			double wallRatio = (double) stats.getHits().get() / cpuSampler_.getTotal() * 100;
-			if (!Double.isNaN(wallRatio)) {
-				System.out.printf(" %6.2f%% (%9.2fs) %s()%n", wallRatio,
-						wallRatio / 100d * cpuSampler_.getUpdateCount() * 0.1d,
-						shortFQN(stats.getClassName(), stats.getMethodName(), w));
+			double wallRatio = (double) stats.getHits().get() / total * 100;
+			if (Double.isNaN(wallRatio)) {
+				continue;
+			}
+			// recent rankings show the sampled time itself, not scaled to the wall time
+			double seconds = cpuSampler_.isWallClock() || ranking != Ranking.CUMULATIVE
+					? stats.getHits().get() / 1000000000d
+					: wallRatio / 100d * cpuSampler_.getSampledWallTime() / 1000000000d;
+			System.out.printf(" %6.2f%% (%9.2fs) ", wallRatio, seconds);
+			if (stateBreakdown) {
+				for (State state : WAIT_STATE_COLUMNS) {
+					long stateTime = group == ALL_GROUPS ? cpuSampler_.getStateTime(state, stats)
+							: cpuSampler_.getStateTime(group, state, stats);
+					System.out.printf("%6.2f%% ", (double) stateTime / stats.getHits().get() * 100);
+				}
 			}
+			System.out.printf("%s()%n", shortFQN(stats.getClassName(), stats.getMethodName(), w));
+		}
+		if (cpuSampler_.isWallClock()) {
+			printTopLocks();
+		}
+	}
+
+	private void printSampleError() {
+		Throwable error = lastSampleError_;
+		if (error != null) {
+			System.out.println("Last sampling error: " + error);
+		}
+	}
+
+	private String describe(Ranking ranking) {
+		switch (ranking) {
+		case WINDOW:
+			return String.format("last %ds", TimeUnit.NANOSECONDS.toSeconds(windowNanos_));
+		case DECAYED:
+			return String.format("decayed (half-life %ds)", TimeUnit.NANOSECONDS.toSeconds(halfLifeNanos_));
+		default:
+			return "since attach";
+		}
+	}
+
+	private void printTopLocks() {
+		List<MethodStats> locks = cpuSampler_.getTopLocks(5);
+		if (locks.isEmpty()) {
+			return;
+		}
+		System.out.printf("%n Top contended locks and monitors:%n%n");
+		int w = width - (1 + 6 + 3 + 9 + 3);
+		for (MethodStats lock : locks) {
+			double ratio = (double) lock.getHits().get() / cpuSampler_.getTotal() * 100;
+			String name = lock.getClassName() + "@" + lock.getMethodName();
+			System.out.printf(" %6.2f%% (%9.2fs) %s%n", ratio, lock.getHits().get() / 1000000000d,
+					name.length() > w ? "..." + name.substring(name.length() - w + 3) : name);
 		}
 	}
 
@@ -106,12 +304,109 @@ public class VMProfileView extends AbstractConsoleView {
 		return line;
 	}
 
+	/**
+	 * Exports the sampled stacks in collapsed stack format (as used by flame
+	 * graph tools) to the given file.
+	 *
+	 * @param file   the file to write to
+	 * @param stream if true, every sample is written as soon as it is acquired,
+	 *               otherwise the aggregated stacks are written on close
+	 * @throws IOException
+	 */
+	public void exportCollapsedStacks(File file, boolean stream) throws IOException {
+		collapsedStackWriter_ = new CollapsedStackWriter(file);
+		streamCollapsedStacks_ = stream;
+		if (stream) {
+			cpuSampler_.setCollapsedStackWriter(collapsedStackWriter_);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		samplerExecutor_.shutdownNow();
+		try {
+			samplerExecutor_.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (collapsedStackWriter_ != null) {
+			try {
+				if (!streamCollapsedStacks_) {
+					cpuSampler_.getCallTree().writeCollapsed(collapsedStackWriter_);
+				}
+			} finally {
+				collapsedStackWriter_.close();
+			}
+		}
+	}
+
+	public boolean isInclusive() {
+		return inclusive_;
+	}
+
+	public void setInclusive(boolean inclusive) {
+		inclusive_ = inclusive;
+	}
+
+	/**
+	 * Switches to the next thread group, after the last group all threads are
+	 * shown again
+	 */
+	public void nextThreadGroup() {
+		int group = threadGroup_ + 1;
+		threadGroup_ = group < cpuSampler_.getThreadGrouper().size() ? group : ALL_GROUPS;
+	}
+
+	/**
+	 * Switches to the next ranking mode (cumulative, window, decayed)
+	 */
+	public void nextRanking() {
+		Ranking[] rankings = Ranking.values();
+		ranking_ = rankings[(ranking_.ordinal() + 1) % rankings.length];
+	}
+
+	public Ranking getRanking() {
+		return ranking_;
+	}
+
+	public void setRanking(Ranking ranking) {
+		ranking_ = ranking;
+	}
+
+	/**
+	 * @param windowSeconds   the length of the sliding window, at most
+	 *                        {@link CPUSampler#TIMELINE_SECONDS}
+	 * @param halfLifeSeconds the half-life of decayed rankings
+	 */
+	public void setRankingPeriods(int windowSeconds, int halfLifeSeconds) {
+		if (windowSeconds < 1 || windowSeconds > CPUSampler.TIMELINE_SECONDS) {
+			throw new IllegalArgumentException(
+					"Window must be between 1 and " + CPUSampler.TIMELINE_SECONDS + " seconds");
+		}
+		if (halfLifeSeconds < 1) {
+			throw new IllegalArgumentException("Half-life must be at least 1 second");
+		}
+		windowNanos_ = TimeUnit.SECONDS.toNanos(windowSeconds);
+		halfLifeNanos_ = TimeUnit.SECONDS.toNanos(halfLifeSeconds);
+	}
+
+	/**
+	 * Switches between inclusive and exclusive method times
+	 */
+	public void toggleInclusive() {
+		inclusive_ = !inclusive_;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jvmtop.view.ConsoleView#printFooter()
 	 */
 	@Override
 	public void printFooter() {
-		//
+		System.out.println("\n" + " Hotkeys: [I] Toggle inclusive/exclusive time; [G] Next thread group; [R] Next ranking;");
+		if (additionalFooterMessage != null) {
+			System.out.println(additionalFooterMessage);
+		}
+		setAdditionalFooterMessage(null);
 	}
 
 }
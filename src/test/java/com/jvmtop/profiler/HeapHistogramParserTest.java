@@ -0,0 +1,113 @@
+/**
+ * jvmtop - java monitoring for the command-line
+ * <p>
+ * Copyright (C) 2013 by Patric Rufflar. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ * <p>
+ * <p>
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ * <p>
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * <p>
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+package com.jvmtop.profiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.jvmtop.profiler.HeapSampler.HeapHistogram;
+
+import sun.tools.attach.HotSpotVirtualMachine;
+
+/**
+ * Feeds a synthetic histogram with rows beyond the int range (as seen on heaps
+ * of 64 GB) into the parser and the sampler.
+ *
+ * @author paru
+ */
+public class HeapHistogramParserTest {
+	private static final String HISTOGRAM = //
+			" num     #instances         #bytes  class name (module)\n"
+					+ "-------------------------------------------------------\n"
+					+ "   1:    2147483648     2147483648  java.util.HashMap$Node (java.base@11.0.2)\n"
+					+ "   2:    3000000000    68719476736  [B (java.base@11.0.2)\n"
+					+ "   3:         12345         678901  java.lang.String (java.base@11.0.2)\n"
+					+ "   4:    2500000000    40000000000  [C (java.base@11.0.2)\n"
+					+ "Total    7647496993   110867639285\n";
+
+	@Test
+	public void parsesRowsAboveIntegerRange() throws IOException {
+		HeapHistogramParser parser = new HeapHistogramParser();
+		assertEquals(4, parser.parse(stream(HISTOGRAM)));
+
+		assertRow(parser, 0, "java.util.HashMap$Node (java.base@11.0.2)", 2147483648L, 2147483648L);
+		assertRow(parser, 1, "[B (java.base@11.0.2)", 3000000000L, 68719476736L);
+		assertRow(parser, 2, "java.lang.String (java.base@11.0.2)", 12345L, 678901L);
+		assertRow(parser, 3, "[C (java.base@11.0.2)", 2500000000L, 40000000000L);
+	}
+
+	@Test
+	public void selectsTopRowsByBytes() throws IOException {
+		HeapHistogramParser parser = new HeapHistogramParser();
+		parser.parse(stream(HISTOGRAM));
+
+		int[] top = parser.selectTopRows(3);
+		assertEquals(3, top.length);
+		assertEquals(68719476736L, parser.getBytes(top[0]));
+		assertEquals(40000000000L, parser.getBytes(top[1]));
+		assertEquals(2147483648L, parser.getBytes(top[2]));
+	}
+
+	@Test
+	public void ordersHistogramsByDecreasingBytes() throws IOException {
+		HeapSampler sampler = new HeapSampler((HotSpotVirtualMachine) null);
+		sampler.update(stream(HISTOGRAM), System.nanoTime());
+
+		List<HeapHistogram> top = sampler.selectTop(10, false);
+		assertEquals(4, top.size());
+		assertEquals(68719476736L, top.get(0).bytes);
+		assertEquals(3000000000L, top.get(0).count);
+		assertEquals(40000000000L, top.get(1).bytes);
+		assertEquals(2147483648L, top.get(2).bytes);
+		assertEquals(678901L, top.get(3).bytes);
+
+		// compareTo must not overflow on differences beyond the int range
+		assertTrue(top.get(0).compareTo(top.get(3)) < 0);
+		assertTrue(top.get(3).compareTo(top.get(0)) > 0);
+		assertTrue(top.get(1).compareTo(top.get(2)) < 0);
+		assertEquals(0, top.get(0).compareTo(top.get(0)));
+
+		List<HeapHistogram> sorted = new ArrayList<HeapHistogram>(top);
+		Collections.reverse(sorted);
+		Collections.sort(sorted);
+		assertEquals(top, sorted);
+	}
+
+	private static void assertRow(HeapHistogramParser parser, int row, String className, long count, long bytes) {
+		assertEquals(className, parser.getClassName(parser.getClassId(row)));
+		assertEquals(count, parser.getCount(row));
+		assertEquals(bytes, parser.getBytes(row));
+	}
+
+	private static InputStream stream(String histogram) {
+		return new ByteArrayInputStream(histogram.getBytes(StandardCharsets.UTF_8));
+	}
+}